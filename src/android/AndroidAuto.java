@@ -7,11 +7,17 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
+import java.io.IOException;
+
 /**
- * This class echoes a string called from JavaScript.
+ * This class echoes a string called from JavaScript, and lets the web layer share the station
+ * catalog with the native side so it is downloaded once per session.
  */
 public class AndroidAuto extends CordovaPlugin {
 
+    private static final String FILE_SCHEME = "file://";
+
     @Override
     public boolean execute(String action, JSONArray args, CallbackContext callbackContext) throws JSONException {
         if (action.equals("coolMethod")) {
@@ -19,9 +25,31 @@ public class AndroidAuto extends CordovaPlugin {
             this.coolMethod(message, callbackContext);
             return true;
         }
+        if (action.equals("seedCatalog")) {
+            this.seedCatalog(args.getString(0), null, optVersion(args), callbackContext);
+            return true;
+        }
+        if (action.equals("seedCatalogFile")) {
+            this.seedCatalog(null, args.getString(0), optVersion(args), callbackContext);
+            return true;
+        }
+        if (action.equals("getCatalogVersion")) {
+            this.getCatalogVersion(callbackContext);
+            return true;
+        }
+        if (action.equals("setCatalogProjection")) {
+            this.setCatalogProjection(args.isNull(0) ? null : args.getString(0),
+                    args.isNull(1) ? null : args.getString(1), args.optInt(2, 0),
+                    callbackContext);
+            return true;
+        }
         return false;
     }
 
+    private static String optVersion(JSONArray args) throws JSONException {
+        return args.isNull(1) ? null : args.getString(1);
+    }
+
     private void coolMethod(String message, CallbackContext callbackContext) {
         if (message != null && message.length() > 0) {
             callbackContext.success(message);
@@ -29,4 +57,59 @@ public class AndroidAuto extends CordovaPlugin {
             callbackContext.error("Expected one non-empty string argument.");
         }
     }
+
+    /**
+     * Hand a catalog already fetched by the web layer over to the native side, either as its
+     * JSON text or as the path of a file holding it. Parsing happens on the plugin thread pool.
+     */
+    private void seedCatalog(final String payload, final String path, final String version,
+                             final CallbackContext callbackContext) {
+        final StationsProvider provider =
+                StationsProvider.getInstance(cordova.getActivity().getApplicationContext());
+        cordova.getThreadPool().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    boolean seeded;
+                    if (path != null) {
+                        String filePath = path.startsWith(FILE_SCHEME)
+                                ? path.substring(FILE_SCHEME.length()) : path;
+                        seeded = provider.seedCatalog(new File(filePath), version);
+                    } else {
+                        seeded = provider.seedCatalog(payload, version);
+                    }
+                    if (seeded) {
+                        callbackContext.success(provider.getCatalogVersion());
+                    } else {
+                        callbackContext.error("Malformed catalog.");
+                    }
+                } catch (IOException e) {
+                    callbackContext.error("Can't read catalog: " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * Narrow the catalog the native side downloads, eg to match what the web layer requests.
+     */
+    private void setCatalogProjection(String fields, String imageVariants, int streamLimit,
+                                      CallbackContext callbackContext) {
+        StationsProvider.getInstance(cordova.getActivity().getApplicationContext())
+                .setCatalogProjection(fields, imageVariants, streamLimit);
+        callbackContext.success();
+    }
+
+    /**
+     * Report the native catalog version, so the web layer only refetches when its copy differs.
+     */
+    private void getCatalogVersion(CallbackContext callbackContext) throws JSONException {
+        StationsProvider provider =
+                StationsProvider.getInstance(cordova.getActivity().getApplicationContext());
+        JSONObject result = new JSONObject();
+        result.put("version", provider.getCatalogVersion() != null
+                ? provider.getCatalogVersion() : JSONObject.NULL);
+        result.put("stale", provider.isStale());
+        callbackContext.success(result);
+    }
 }
@@ -0,0 +1,86 @@
+package com.bhvr.android.auto;
+
+import android.os.Bundle;
+import android.support.v4.media.MediaBrowserCompat.MediaItem;
+
+/**
+ * Describes a client bound to the browse service (Android Auto, Assistant, Wear, the app UI...)
+ * and the presentation hints it sent with {@code onGetRoot}. Clients sending the same hints share
+ * a profile key, and therefore cached browse results; each client keeps its own root id so the
+ * service can tell them apart in {@code onLoadChildren}.
+ */
+public class BrowseClientProfile {
+
+    /** Maximum number of root children the client is able to display. */
+    public static final String ROOT_HINT_CHILDREN_LIMIT =
+            "androidx.media.MediaBrowserCompat.Extras.KEY_ROOT_CHILDREN_LIMIT";
+    /** Bitmask of {@link MediaItem} flags the client supports for root children. */
+    public static final String ROOT_HINT_SUPPORTED_FLAGS =
+            "androidx.media.MediaBrowserCompat.Extras.KEY_ROOT_CHILDREN_SUPPORTED_FLAGS";
+    /** Preferred artwork size, in pixels. */
+    public static final String ROOT_HINT_ART_SIZE_PIXELS =
+            "android.media.extras.MEDIA_ART_SIZE_HINT_PIXELS";
+
+    static final String ROOT_ID_PREFIX = "root/";
+    /** Suffix of the browsable node holding the stations, for clients that can't play roots. */
+    static final String STATIONS_NODE_SUFFIX = "/stations";
+
+    private static final int NO_LIMIT = 0;
+    private static final int ALL_FLAGS = MediaItem.FLAG_BROWSABLE | MediaItem.FLAG_PLAYABLE;
+
+    public final String packageName;
+    public final int uid;
+    public final int childrenLimit;
+    public final int supportedFlags;
+    public final int artSizePixels;
+
+    private BrowseClientProfile(String packageName, int uid, int childrenLimit,
+                                int supportedFlags, int artSizePixels) {
+        this.packageName = packageName;
+        this.uid = uid;
+        this.childrenLimit = childrenLimit;
+        this.supportedFlags = supportedFlags;
+        this.artSizePixels = artSizePixels;
+    }
+
+    public static BrowseClientProfile fromRootHints(String packageName, int uid, Bundle rootHints) {
+        if (rootHints == null) {
+            return new BrowseClientProfile(packageName, uid, NO_LIMIT, ALL_FLAGS, 0);
+        }
+        int limit = Math.max(NO_LIMIT, rootHints.getInt(ROOT_HINT_CHILDREN_LIMIT, NO_LIMIT));
+        int flags = rootHints.getInt(ROOT_HINT_SUPPORTED_FLAGS, ALL_FLAGS);
+        int artSize = Math.max(0, rootHints.getInt(ROOT_HINT_ART_SIZE_PIXELS, 0));
+        return new BrowseClientProfile(packageName, uid, limit, flags, artSize);
+    }
+
+    /**
+     * Root id handed back to this client; it comes back to us as the parent id of its
+     * {@code onLoadChildren} calls.
+     */
+    public String getRootId() {
+        return ROOT_ID_PREFIX + getClientKey();
+    }
+
+    /** Id of the browsable node listing the stations for this client. */
+    public String getStationsNodeId() {
+        return getRootId() + STATIONS_NODE_SUFFIX;
+    }
+
+    /** Identifies the bound client, used for throttling. */
+    public String getClientKey() {
+        return packageName + "/" + uid;
+    }
+
+    /** Identifies the presentation hints, used for sharing cached results between clients. */
+    public String getProfileKey() {
+        return childrenLimit + ":" + supportedFlags + ":" + artSizePixels;
+    }
+
+    public boolean supports(int itemFlags) {
+        return (itemFlags & supportedFlags) != 0;
+    }
+
+    public boolean hasChildrenLimit() {
+        return childrenLimit != NO_LIMIT;
+    }
+}
@@ -0,0 +1,75 @@
+package com.bhvr.android.auto;
+
+import android.support.v4.media.MediaBrowserCompat.MediaItem;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Caches browse results per client profile and throttles clients that reload in a tight loop.
+ * Results are built once per profile and catalog generation; any number of clients sharing that
+ * profile then get the same list without touching the catalog again.
+ * <p>
+ * Only accessed from the service's main thread, so no synchronization is needed.
+ */
+public class BrowseResultCache {
+
+    /** Number of loads a single client may issue within {@link #THROTTLE_WINDOW_MS}. */
+    static final int MAX_LOADS_PER_WINDOW = 4;
+    static final long THROTTLE_WINDOW_MS = 2000;
+
+    public interface Builder {
+        List<MediaItem> build(BrowseClientProfile profile, String node);
+    }
+
+    private final Map<String, List<MediaItem>> mItemsByProfile = new HashMap<>();
+    private final Map<String, ArrayDeque<Long>> mLoadTimesByClient = new HashMap<>();
+    private int mGeneration = -1;
+
+    /**
+     * Return the cached children of the given node for the given profile, building them if the
+     * catalog generation changed since they were cached.
+     */
+    public List<MediaItem> get(BrowseClientProfile profile, String node, int catalogGeneration,
+                               Builder builder) {
+        if (catalogGeneration != mGeneration) {
+            mItemsByProfile.clear();
+            mGeneration = catalogGeneration;
+        }
+        String key = node + "|" + profile.getProfileKey();
+        List<MediaItem> items = mItemsByProfile.get(key);
+        if (items == null) {
+            items = Collections.unmodifiableList(builder.build(profile, node));
+            mItemsByProfile.put(key, items);
+        }
+        return items;
+    }
+
+    /** Drop all cached results, eg when the order of the items changed. */
+    public void invalidate() {
+        mItemsByProfile.clear();
+    }
+
+    /**
+     * Record a load request from a client and return how long it should be deferred, in
+     * milliseconds. Zero means the load may be served right away.
+     */
+    public long reserveLoad(String clientKey, long now) {
+        ArrayDeque<Long> loads = mLoadTimesByClient.get(clientKey);
+        if (loads == null) {
+            loads = new ArrayDeque<>();
+            mLoadTimesByClient.put(clientKey, loads);
+        }
+        while (!loads.isEmpty() && now - loads.peekFirst() >= THROTTLE_WINDOW_MS) {
+            loads.pollFirst();
+        }
+        if (loads.size() < MAX_LOADS_PER_WINDOW) {
+            loads.addLast(now);
+            return 0;
+        }
+        return loads.peekFirst() + THROTTLE_WINDOW_MS - now;
+    }
+}
@@ -1,22 +1,34 @@
 package com.bhvr.android.auto;
 
 import android.content.BroadcastReceiver;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.pm.PackageManager;
 import android.media.MediaMetadata;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Process;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
+import android.support.v4.media.MediaBrowserCompat;
 import android.support.v4.media.MediaBrowserCompat.MediaItem;
 import android.support.v4.media.MediaBrowserServiceCompat;
 import android.support.v4.media.MediaDescriptionCompat;
 import android.support.v4.media.MediaMetadataCompat;
 import android.support.v4.media.session.MediaSessionCompat;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.URI;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -86,15 +98,60 @@ public class CogecoStreamingService extends MediaBrowserServiceCompat {
     private MediaSessionCompat mSession;
     private StationsProvider mStationsProvider;
     private PlaybackManager mPlayback;
+    private StationHistoryStore mHistory;
     private List<MediaMetadataCompat>  stations;
-    private String currentMediaId;
+    private volatile String currentMediaId;
+    private boolean mResumedOnCatalogLoad;
+    /** Main thread only: a background refresh of the stale catalog is running. */
+    private boolean mRefreshPending;
+    /** Set on the main thread once the user picked a station, which then wins over resume. */
+    private boolean mPlayRequested;
+    private Handler mHandler;
+    private HandlerThread mPlaybackThread;
+    private PlaybackHandler mPlaybackHandler;
+    private final BrowseResultCache mBrowseCache = new BrowseResultCache();
+    private final Map<String, BrowseClientProfile> mClientProfiles = new HashMap<>();
+    private final Map<String, List<DeferredLoad>> mDeferredLoads = new HashMap<>();
     public static final String EXTRA_METADATA_ADVERTISEMENT =
             "android.media.metadata.ADVERTISEMENT";
+    /**
+     * Custom action toggling the favorite state of the station given by the
+     * {@link MediaMetadata#METADATA_KEY_MEDIA_ID} extra, or of the current station.
+     */
+    public static final String ACTION_TOGGLE_FAVORITE = "com.bhvr.android.auto.TOGGLE_FAVORITE";
+    /** Custom action dropping the time-shifted audio to play live again. */
+    public static final String ACTION_JUMP_TO_LIVE = "com.bhvr.android.auto.JUMP_TO_LIVE";
+
+    private static final String DEFAULT_STATION_ID = "1";
+    private static final String HISTORY_FILE = "station_history.bin";
+    // Browse nodes, shared by the clients with the same presentation hints
+    private static final String NODE_ROOT = "root";
+    private static final String NODE_STATIONS = "stations";
+    private static final String STATIONS_NODE_TITLE = "Stations";
+    /**
+     * Service meta-data setting the size of the time-shift buffer in bytes, 0 to disable it.
+     * Set from the TIME_SHIFT_BUFFER_BYTES plugin variable.
+     */
+    public static final String META_TIME_SHIFT_BUFFER_BYTES =
+            "com.bhvr.android.auto.TIME_SHIFT_BUFFER_BYTES";
+    /** About four minutes of a 128kbps stream. */
+    private static final int DEFAULT_TIME_SHIFT_BUFFER_BYTES = 4 * 1024 * 1024;
+
+    // Commands processed by the playback thread
+    private static final int MSG_PLAY = 1;
+    private static final int MSG_PLAY_FROM_MEDIA_ID = 2;
+    private static final int MSG_RESUME_LAST_PLAYED = 3;
+    private static final int MSG_PAUSE = 4;
+    private static final int MSG_STOP = 5;
+    private static final int MSG_JUMP_TO_LIVE = 6;
+    private static final int MSG_RELEASE = 7;
+    private static final int MSG_UPDATE_PLAYBACK_STATE = 8;
 
     @Override
     public void onCreate() {
         super.onCreate();
 
+        mHandler = new Handler();
         mSession = new MediaSessionCompat(this, "CogecoStreamingService");
         setSessionToken(mSession.getSessionToken());
         mSession.setCallback(new MediaSessionCallback());
@@ -103,10 +160,15 @@ public class CogecoStreamingService extends MediaBrowserServiceCompat {
 
 
         IntentFilter filter = new IntentFilter("com.google.android.gms.car.media.STATUS");
-        mStationsProvider = new StationsProvider();
-
-        final MediaPlayer mediaPlayer = new MediaPlayer();
-
+        mStationsProvider = StationsProvider.getInstance(this);
+        mStationsProvider.setOnCatalogChangedListener(new Runnable() {
+            @Override
+            public void run() {
+                // The web layer handed over a catalog
+                notifyRootsChanged();
+            }
+        });
+        mHistory = StationHistoryStore.open(new File(getFilesDir(), HISTORY_FILE));
 
         BroadcastReceiver receiver = new BroadcastReceiver() {
 
@@ -117,20 +179,53 @@ public class CogecoStreamingService extends MediaBrowserServiceCompat {
             }
         };
         registerReceiver(receiver, filter);
+
+        // MediaPlayer and audio focus work happens on its own thread, so preparing a stream
+        // never holds up the binder callbacks served by the main thread
+        mPlaybackThread = new HandlerThread("PlaybackThread", Process.THREAD_PRIORITY_AUDIO);
+        mPlaybackThread.start();
+        mPlaybackHandler = new PlaybackHandler(mPlaybackThread);
         mPlayback = new PlaybackManager(
                         this,
+                        mPlaybackThread.getLooper(),
                         new PlaybackManager.Callback() {
                             @Override
                             public void onPlaybackStatusChanged(PlaybackStateCompat state) {
                                 mSession.setPlaybackState(state);
                              }
+
+                            @Override
+                            public void onAddCustomActions(
+                                    PlaybackStateCompat.Builder stateBuilder) {
+                                addFavoriteAction(stateBuilder);
+                            }
                         });
+        mPlayback.setTimeShiftBufferSize(getTimeShiftBufferSize());
+        mStationsProvider.setStreamWarmUp(mPlayback.isTimeShiftEnabled());
 
     }
 
+    private int getTimeShiftBufferSize() {
+        try {
+            Bundle metaData = getPackageManager().getServiceInfo(
+                    new ComponentName(this, getClass()), PackageManager.GET_META_DATA).metaData;
+            return metaData == null ? DEFAULT_TIME_SHIFT_BUFFER_BYTES
+                    : Math.max(0, metaData.getInt(META_TIME_SHIFT_BUFFER_BYTES,
+                            DEFAULT_TIME_SHIFT_BUFFER_BYTES));
+        } catch (PackageManager.NameNotFoundException e) {
+            return DEFAULT_TIME_SHIFT_BUFFER_BYTES;
+        }
+    }
+
     @Override
     public void onDestroy() {
-        mSession.release();
+        mHandler.removeCallbacksAndMessages(null);
+        mPlaybackHandler.removeCallbacksAndMessages(null);
+        // The session and history are released by the playback thread, once the player is
+        // done publishing its state
+        mPlaybackHandler.sendEmptyMessage(MSG_RELEASE);
+        mPlaybackThread.quitSafely();
+        mStationsProvider.setOnCatalogChangedListener(null);
     }
 
     @Override
@@ -142,35 +237,100 @@ public class CogecoStreamingService extends MediaBrowserServiceCompat {
 
 
         }
-        return new BrowserRoot("root", null);
+        BrowseClientProfile profile =
+                BrowseClientProfile.fromRootHints(clientPackageName, clientUid, rootHints);
+        mClientProfiles.put(profile.getRootId(), profile);
+        return new BrowserRoot(profile.getRootId(), null);
     }
 
     @Override
     public void onLoadChildren(@NonNull final String parentMediaId,
                                @NonNull final Result<List<MediaItem>> result) {
+        onLoadChildren(parentMediaId, result, Bundle.EMPTY);
+    }
+
+    @Override
+    public void onLoadChildren(@NonNull final String parentMediaId,
+                               @NonNull final Result<List<MediaItem>> result,
+                               @NonNull final Bundle options) {
+        String node = NODE_ROOT;
+        String rootId = parentMediaId;
+        if (parentMediaId.endsWith(BrowseClientProfile.STATIONS_NODE_SUFFIX)) {
+            node = NODE_STATIONS;
+            rootId = parentMediaId.substring(0,
+                    parentMediaId.length() - BrowseClientProfile.STATIONS_NODE_SUFFIX.length());
+        }
+        BrowseClientProfile profile = getClientProfile(rootId);
+        long delay = mBrowseCache.reserveLoad(profile.getClientKey(), SystemClock.elapsedRealtime());
+        if (delay > 0) {
+            // This client reloads too often; answer it later from the cache so it can't
+            // monopolize the main thread at the expense of the other clients.
+            deferLoad(profile, node, result, options, delay);
+        } else {
+            loadChildren(profile, node, result, options, false);
+        }
+    }
+
+    private BrowseClientProfile getClientProfile(String rootId) {
+        BrowseClientProfile profile = mClientProfiles.get(rootId);
+        if (profile == null) {
+            profile = BrowseClientProfile.fromRootHints("", 0, getBrowserRootHints());
+        }
+        return profile;
+    }
+
+    private void deferLoad(final BrowseClientProfile profile, String node,
+                           final Result<List<MediaItem>> result,
+                           final Bundle options, long delay) {
+        result.detach();
+        final String clientKey = profile.getClientKey();
+        List<DeferredLoad> pending = mDeferredLoads.get(clientKey);
+        if (pending == null) {
+            // Coalesce all the loads this client issues while throttled into a single flush
+            pending = new ArrayList<>();
+            mDeferredLoads.put(clientKey, pending);
+            mHandler.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    for (DeferredLoad load : mDeferredLoads.remove(clientKey)) {
+                        // Already detached by deferLoad
+                        loadChildren(profile, load.node, load.result, load.options, true);
+                    }
+                }
+            }, delay);
+        }
+        pending.add(new DeferredLoad(node, result, options));
+    }
+
+    /**
+     * @param detached true if the result was detached already, which can only be done once
+     */
+    private void loadChildren(final BrowseClientProfile profile, final String node,
+                              final Result<List<MediaItem>> result,
+                              final Bundle options, boolean detached) {
 
         if (!mStationsProvider.isInitialized()) {
             // Use result.detach to allow calling result.sendResult from another thread:
-            result.detach();
+            if (!detached) {
+                result.detach();
+            }
 
             mStationsProvider.retrieveMediaAsync(new StationsProvider.Callback() {
                 @Override
-                public void onMusicCatalogReady(boolean success) {
+                public void onMusicCatalogReady(boolean success,
+                                                StationsProvider.Failure failure) {
                     if (success) {
-                        /***  Set Ckoi as Default Sation ****/
+                        // Concurrent loads share the same fetch, only resume playback once
+                        resumeOnCatalogLoad();
 
-                        currentMediaId = "1";
-                        mSession.setActive(true);
-                        MediaMetadataCompat metadata =getMediametaData("1");
-                        mSession.setMetadata(metadata);
-                        mPlayback.setMediaUrl(getMediaUrl("1"));
-                        mPlayback.play(metadata);
-                       
-                        /* *********   */
-
-                        loadChildrenImpl(parentMediaId, result);
+                        loadChildrenImpl(profile, node, result, options);
+                        if (mStationsProvider.isStale()) {
+                            // Answered from the last good catalog, look for a fresh one
+                            refreshCatalog();
+                        }
 
                     } else {
+                        setCatalogErrorState(failure);
                         result.sendResult(new ArrayList<MediaItem>());
 
                     }
@@ -179,45 +339,296 @@ public class CogecoStreamingService extends MediaBrowserServiceCompat {
 
         } else {
             // If our music catalog is already loaded/cached, load them into result immediately
-            loadChildrenImpl(parentMediaId, result);
+            // (eg seeded by the web layer)
+            resumeOnCatalogLoad();
+            loadChildrenImpl(profile, node, result, options);
+            if (mStationsProvider.isStale()) {
+                refreshCatalog();
+            }
+        }
+    }
+
+    /**
+     * Try to replace the last good catalog by a fresh one in the background, and have the
+     * clients reload if it worked.
+     */
+    private void refreshCatalog() {
+        if (mRefreshPending) {
+            // Every load of a stale catalog asks, one refresh answers them all
+            return;
+        }
+        mRefreshPending = true;
+        final int generation = mStationsProvider.getCatalogGeneration();
+        mStationsProvider.retrieveMediaAsync(new StationsProvider.Callback() {
+            @Override
+            public void onMusicCatalogReady(boolean success, StationsProvider.Failure failure) {
+                mRefreshPending = false;
+                if (mStationsProvider.getCatalogGeneration() != generation) {
+                    // The stations changed, not only their freshness
+                    notifyRootsChanged();
+                }
+            }
+        });
+    }
+
+    private void notifyRootsChanged() {
+        for (BrowseClientProfile profile : mClientProfiles.values()) {
+            notifyChildrenChanged(profile.getRootId());
+            notifyChildrenChanged(profile.getStationsNodeId());
+        }
+    }
+
+    /** Offer to add the current station to the favorites, or to remove it. */
+    private void addFavoriteAction(PlaybackStateCompat.Builder stateBuilder) {
+        String mediaId = currentMediaId;
+        if (mediaId == null) {
+            return;
         }
+        boolean favorite = mHistory.isFavorite(mediaId);
+        stateBuilder.addCustomAction(new PlaybackStateCompat.CustomAction.Builder(
+                ACTION_TOGGLE_FAVORITE,
+                favorite ? "Remove from favorites" : "Add to favorites",
+                favorite ? android.R.drawable.star_big_on : android.R.drawable.star_big_off)
+                .build());
+    }
+
+    /**
+     * Resume playback the first time a catalog is available, unless the user already asked for
+     * something to play.
+     */
+    private void resumeOnCatalogLoad() {
+        if (!mResumedOnCatalogLoad && !mPlayRequested && currentMediaId == null) {
+            mResumedOnCatalogLoad = true;
+            postPlaybackCommand(MSG_RESUME_LAST_PLAYED, null);
+        }
+    }
+
+    /** Let the clients know why there is nothing to browse. */
+    private void setCatalogErrorState(StationsProvider.Failure failure) {
+        String message = failure == StationsProvider.Failure.MALFORMED
+                ? "The station list is unavailable right now"
+                : "Can't reach the station list, check your connection";
+        mSession.setPlaybackState(new PlaybackStateCompat.Builder()
+                .setState(PlaybackStateCompat.STATE_ERROR, 0, 0)
+                .setErrorMessage(PlaybackStateCompat.ERROR_CODE_APP_ERROR, message)
+                .build());
+    }
+
+    private void loadChildrenImpl(final BrowseClientProfile profile, final String node,
+                                  final Result<List<MediaItem>> result,
+                                  final Bundle options) {
+
+        List<MediaItem> mediaItems = mBrowseCache.get(profile, node,
+                mStationsProvider.getCatalogGeneration(), new BrowseResultCache.Builder() {
+                    @Override
+                    public List<MediaItem> build(BrowseClientProfile clientProfile,
+                                                 String clientNode) {
+                        return buildMediaItems(clientProfile, clientNode);
+                    }
+                });
+
+        int page = options.getInt(MediaBrowserCompat.EXTRA_PAGE, -1);
+        int pageSize = options.getInt(MediaBrowserCompat.EXTRA_PAGE_SIZE, -1);
+        int from = 0;
+        int to = mediaItems.size();
+        if (page >= 0 && pageSize > 0) {
+            from = Math.min(page * pageSize, to);
+            to = Math.min(from + pageSize, to);
+        } else if (NODE_ROOT.equals(node) && profile.hasChildrenLimit()) {
+            to = Math.min(profile.childrenLimit, to);
+        }
+        result.sendResult(new ArrayList<>(mediaItems.subList(from, to)));
+
     }
 
-    private void loadChildrenImpl(final String parentMediaId,
-                                  final Result<List<MediaItem>> result) {
+    private List<MediaItem> buildMediaItems(BrowseClientProfile profile, String node) {
 
         ConcurrentMap<String, List<MediaMetadataCompat>> stationsList = mStationsProvider.getStationsList();
         List<MediaItem> mediaItems = new ArrayList<>();
+        if (NODE_ROOT.equals(node) && !profile.supports(MediaItem.FLAG_PLAYABLE)) {
+            // The client can only show browsable items at its root, list the stations one
+            // level down
+            if (profile.supports(MediaItem.FLAG_BROWSABLE)) {
+                mediaItems.add(new MediaItem(
+                        new MediaDescriptionCompat.Builder()
+                                .setMediaId(profile.getStationsNodeId())
+                                .setTitle(STATIONS_NODE_TITLE)
+                                .build(), MediaItem.FLAG_BROWSABLE
+                ));
+            }
+            return mediaItems;
+        }
+        List<MediaMetadataCompat> sortedStations = new ArrayList<>();
         Iterator<Map.Entry<String, List<MediaMetadataCompat>>> iterator = stationsList.entrySet().iterator();
 
         while (iterator.hasNext()) {
             Map.Entry<String, List<MediaMetadataCompat>> station = iterator.next();
-            List<MediaMetadataCompat>  tmpStations = station.getValue();
+            sortedStations.addAll(station.getValue());
+        }
 
-            for(int i=0; i< tmpStations.size(); i++) {
+        // Surface the stations the user is the most likely to pick first
+        final Comparator<String> historyOrder = mHistory.getStationComparator();
+        Collections.sort(sortedStations, new Comparator<MediaMetadataCompat>() {
+            @Override
+            public int compare(MediaMetadataCompat a, MediaMetadataCompat b) {
+                String idA = a.getString(METADATA_KEY_MEDIA_ID);
+                String idB = b.getString(METADATA_KEY_MEDIA_ID);
+                int result = historyOrder.compare(idA, idB);
+                return result != 0 ? result : idA.compareTo(idB);
+            }
+        });
+
+        for(int i=0; i< sortedStations.size(); i++) {
+
+            MediaMetadataCompat st = sortedStations.get(i);
+            MediaItem item = new MediaItem (
+                    new MediaDescriptionCompat.Builder()
+                            .setMediaId(st.getString(METADATA_KEY_MEDIA_ID))
+                            .setTitle(st.getText(METADATA_KEY_TITLE))
+                            .setIconUri(Uri.parse(
+                                    StationsProvider.getArtUri(st, profile.artSizePixels)))
+                            .setMediaUri(Uri.parse(st.getString(METADATA_KEY_MEDIA_URI)))
+                            .build(), MediaItem.FLAG_PLAYABLE
+            );
+            mediaItems.add(item);
+        }
+        return mediaItems;
 
-                MediaMetadataCompat st = tmpStations.get(i);
-                MediaItem item = new MediaItem (
-                        new MediaDescriptionCompat.Builder()
-                                .setMediaId(st.getString(METADATA_KEY_MEDIA_ID))
-                                .setTitle(st.getText(METADATA_KEY_TITLE))
-                                .setIconUri(Uri.parse(st.getString(METADATA_KEY_ALBUM_ART_URI)))
-                                .setMediaUri(Uri.parse(st.getString(METADATA_KEY_MEDIA_URI)))
-                                .build(), MediaItem.FLAG_PLAYABLE
-                );
-                mediaItems.add(item);
+    }
+
+    private static final class DeferredLoad {
+        final String node;
+        final Result<List<MediaItem>> result;
+        final Bundle options;
+
+        DeferredLoad(String node, Result<List<MediaItem>> result, Bundle options) {
+            this.node = node;
+            this.result = result;
+            this.options = options;
+        }
+    }
+
+    /**
+     * Queue a command for the playback thread. Pending commands it supersedes are dropped, so a
+     * burst of input (eg three quick station taps) only runs its outcome.
+     */
+    private void postPlaybackCommand(int what, Object obj) {
+        switch (what) {
+            case MSG_RESUME_LAST_PLAYED:
+                // Never supersedes what the user asked for
+                break;
+            case MSG_PLAY_FROM_MEDIA_ID:
+                mPlaybackHandler.removeMessages(MSG_PLAY_FROM_MEDIA_ID);
+                mPlaybackHandler.removeMessages(MSG_RESUME_LAST_PLAYED);
+                // fall through
+            case MSG_PAUSE:
+            case MSG_STOP:
+                // A pick which didn't start yet is dropped rather than started then paused; it
+                // is the current media id already, so a later play starts it
+                mPlaybackHandler.removeMessages(MSG_PLAY_FROM_MEDIA_ID);
+                mPlaybackHandler.removeMessages(MSG_RESUME_LAST_PLAYED);
+                // fall through
+            case MSG_PLAY:
+                mPlaybackHandler.removeMessages(MSG_PLAY);
+                mPlaybackHandler.removeMessages(MSG_PAUSE);
+                mPlaybackHandler.removeMessages(MSG_STOP);
+                break;
+            default:
+                break;
+        }
+        mPlaybackHandler.obtainMessage(what, obj).sendToTarget();
+    }
+
+    /** Single consumer of the playback commands, the only thread touching the PlaybackManager. */
+    private final class PlaybackHandler extends Handler {
+
+        PlaybackHandler(HandlerThread thread) {
+            super(thread.getLooper());
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            switch (msg.what) {
+                case MSG_PLAY:
+                    if (currentMediaId == null) {
+                        // Nothing was picked yet
+                        break;
+                    }
+                    if (!currentMediaId.equals(mPlayback.getCurrentMediaId())) {
+                        // Picked, but paused or stopped before it started
+                        playFromMediaId(currentMediaId, true);
+                        break;
+                    }
+                    MediaMetadataCompat metadata =getMediametaData(currentMediaId);
+                    mPlayback.setMediaUrl(getMediaUrl(currentMediaId));
+                    mPlayback.play(metadata);
+                    break;
+                case MSG_PLAY_FROM_MEDIA_ID:
+                    playFromMediaId((String) msg.obj, true);
+                    break;
+                case MSG_RESUME_LAST_PLAYED:
+                    /***  Resume the last played station, Ckoi by default ****/
+                    if (currentMediaId == null) {
+                        playFromMediaId(getResumeMediaId(), false);
+                    }
+                    break;
+                case MSG_PAUSE:
+                    mPlayback.pause();
+                    break;
+                case MSG_STOP:
+                    mPlayback.stop();
+                    break;
+                case MSG_JUMP_TO_LIVE:
+                    mPlayback.jumpToLive();
+                    break;
+                case MSG_RELEASE:
+                    mPlayback.release();
+                    mSession.release();
+                    mHistory.close();
+                    break;
+                case MSG_UPDATE_PLAYBACK_STATE:
+                    mPlayback.updatePlaybackState();
+                    break;
+                default:
+                    break;
             }
         }
-        result.sendResult(mediaItems);
 
+        /**
+         * @param picked true if the user picked the station, which then counts as played in the
+         *               history; false when resuming it
+         */
+        private void playFromMediaId(String mediaId, boolean picked) {
+            MediaMetadataCompat metadata =getMediametaData(mediaId);
+            if (metadata == null) {
+                // Not in the catalog (anymore)
+                return;
+            }
+            if(mPlayback.isPlaying()) {
+                mPlayback.stop();
+            }
+            currentMediaId = mediaId;
+            mSession.setActive(true);
+            mSession.setMetadata(metadata);
+            mPlayback.setMediaUrl(getMediaUrl(mediaId));
+            mPlayback.play(metadata);
+            if (picked) {
+                // Only the last of a burst of picks gets here
+                mHistory.recordPlay(mediaId);
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mBrowseCache.invalidate();
+                    }
+                });
+            }
+        }
     }
 
     private final class MediaSessionCallback extends MediaSessionCompat.Callback {
         @Override
         public void onPlay() {
-            MediaMetadataCompat metadata =getMediametaData(currentMediaId);
-            mPlayback.setMediaUrl(getMediaUrl(currentMediaId));
-            mPlayback.play(metadata);
+            postPlaybackCommand(MSG_PLAY, null);
         }
 
         @Override
@@ -230,25 +641,20 @@ public class CogecoStreamingService extends MediaBrowserServiceCompat {
 
         @Override
         public void onPlayFromMediaId(String mediaId, Bundle extras) {
-            if(mPlayback.isPlaying()) {
-                mPlayback.stop();
-            }
+            mPlayRequested = true;
+            // Current right away, so a play following a stop that dropped this pick starts it
             currentMediaId = mediaId;
-            mSession.setActive(true);
-            MediaMetadataCompat metadata =getMediametaData(mediaId);
-            mSession.setMetadata(metadata);
-            mPlayback.setMediaUrl(getMediaUrl(mediaId));
-            mPlayback.play(metadata);
+            postPlaybackCommand(MSG_PLAY_FROM_MEDIA_ID, mediaId);
         }
 
         @Override
         public void onPause() {
-            mPlayback.pause();
+            postPlaybackCommand(MSG_PAUSE, null);
         }
 
         @Override
         public void onStop() {
-            mPlayback.stop();
+            postPlaybackCommand(MSG_STOP, null);
         }
 
         @Override
@@ -263,6 +669,17 @@ public class CogecoStreamingService extends MediaBrowserServiceCompat {
 
         @Override
         public void onCustomAction(String action, Bundle extras) {
+            if (ACTION_TOGGLE_FAVORITE.equals(action)) {
+                String mediaId = extras != null && extras.containsKey(METADATA_KEY_MEDIA_ID)
+                        ? extras.getString(METADATA_KEY_MEDIA_ID) : currentMediaId;
+                mHistory.setFavorite(mediaId, !mHistory.isFavorite(mediaId));
+                mBrowseCache.invalidate();
+                // Favorites come first, and the action shows the new state
+                notifyRootsChanged();
+                postPlaybackCommand(MSG_UPDATE_PLAYBACK_STATE, null);
+            } else if (ACTION_JUMP_TO_LIVE.equals(action)) {
+                postPlaybackCommand(MSG_JUMP_TO_LIVE, null);
+            }
         }
 
         @Override
@@ -270,6 +687,18 @@ public class CogecoStreamingService extends MediaBrowserServiceCompat {
             System.out.println("Play");
         }
     }
+    /**
+     * The station to resume when the catalog gets loaded: the last one played if it is still
+     * in the catalog, Ckoi otherwise.
+     */
+    private String getResumeMediaId() {
+        String lastPlayedId = mHistory.getLastPlayedId();
+        if (lastPlayedId != null && getMediametaData(lastPlayedId) != null) {
+            return lastPlayedId;
+        }
+        return DEFAULT_STATION_ID;
+    }
+
     private MediaMetadataCompat getMediametaData(String id) {
         MediaMetadataCompat metaData = null;
         ConcurrentMap<String, List<MediaMetadataCompat>> stationsList = mStationsProvider.getStationsList();
@@ -0,0 +1,206 @@
+package com.bhvr.android.auto;
+
+import android.os.SystemClock;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Constructor;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.URL;
+import java.security.GeneralSecurityException;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.GZIPInputStream;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Shared HTTP layer for the catalog and the streams read by the time-shift buffer.
+ * <p>
+ * All connections go through a single SSL socket factory, so TLS sessions are resumed instead
+ * of renegotiated and the platform keep-alive pool (keyed by host and socket factory) can hand
+ * back idle connections. Once the catalog is known, {@link #warmUp} resolves the stream hosts
+ * and opens a connection to each of them in the background, taking DNS, TCP and TLS setup out
+ * of the time to first audio.
+ */
+public final class NetworkClient {
+
+    private static final int CONNECT_TIMEOUT_MS = 10000;
+    private static final int READ_TIMEOUT_MS = 15000;
+    private static final int WARM_UP_TIMEOUT_MS = 5000;
+    private static final int TLS_SESSION_CACHE_SIZE = 32;
+    private static final int TLS_SESSION_TIMEOUT_S = 12 * 60 * 60;
+    /** Hosts warmed up more recently than this still have a pooled connection. */
+    private static final long WARM_UP_INTERVAL_MS = 60 * 1000;
+    private static final int WARM_UP_THREADS = 2;
+    /** Optional brotli decoder, used when the host app bundles it. */
+    private static final String BROTLI_INPUT_STREAM = "org.brotli.dec.BrotliInputStream";
+
+    private static NetworkClient sInstance;
+
+    private final SSLSocketFactory mSslSocketFactory;
+    private final ExecutorService mWarmUpExecutor;
+    private final Map<String, Long> mWarmUpTimes = new ConcurrentHashMap<>();
+    private final Constructor<? extends InputStream> mBrotliDecoder;
+
+    private NetworkClient() {
+        mSslSocketFactory = createSslSocketFactory();
+        mBrotliDecoder = findBrotliDecoder();
+        mWarmUpExecutor = Executors.newFixedThreadPool(WARM_UP_THREADS, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "NetworkWarmUp");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public static synchronized NetworkClient getInstance() {
+        if (sInstance == null) {
+            sInstance = new NetworkClient();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Open a connection to the given url. Callers must fully read and close the input stream,
+     * without calling {@link HttpURLConnection#disconnect()}, for the connection to be pooled.
+     */
+    public HttpURLConnection open(String urlString) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(urlString).openConnection();
+        if (connection instanceof HttpsURLConnection && mSslSocketFactory != null) {
+            ((HttpsURLConnection) connection).setSSLSocketFactory(mSslSocketFactory);
+        }
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        connection.setReadTimeout(READ_TIMEOUT_MS);
+        connection.setRequestProperty("Connection", "keep-alive");
+        return connection;
+    }
+
+    /**
+     * Ask for a compressed response: brotli when a decoder is available, gzip otherwise. The
+     * response must then be read through {@link #getDecodedInputStream}.
+     */
+    public void acceptCompressed(HttpURLConnection connection) {
+        connection.setRequestProperty("Accept-Encoding",
+                mBrotliDecoder != null ? "br, gzip" : "gzip");
+    }
+
+    /** Return the response body, decompressed on the fly according to its content encoding. */
+    public InputStream getDecodedInputStream(HttpURLConnection connection) throws IOException {
+        InputStream is = connection.getInputStream();
+        String encoding = connection.getContentEncoding();
+        if ("gzip".equalsIgnoreCase(encoding)) {
+            return new GZIPInputStream(is);
+        }
+        if ("br".equalsIgnoreCase(encoding) && mBrotliDecoder != null) {
+            try {
+                return mBrotliDecoder.newInstance(is);
+            } catch (ReflectiveOperationException e) {
+                is.close();
+                throw new IOException("Can't decode brotli response", e);
+            }
+        }
+        return is;
+    }
+
+    /**
+     * Pre-resolve and pre-connect the hosts of the given urls in the background. Each host is
+     * warmed up once, using the first url referencing it.
+     */
+    public void warmUp(Collection<String> urls) {
+        Map<String, String> urlByOrigin = new LinkedHashMap<>();
+        for (String url : urls) {
+            String origin = getOrigin(url);
+            if (origin != null && !urlByOrigin.containsKey(origin)) {
+                urlByOrigin.put(origin, url);
+            }
+        }
+        long now = SystemClock.elapsedRealtime();
+        for (Map.Entry<String, String> entry : urlByOrigin.entrySet()) {
+            Long warmedAt = mWarmUpTimes.get(entry.getKey());
+            if (warmedAt != null && now - warmedAt < WARM_UP_INTERVAL_MS) {
+                continue;
+            }
+            mWarmUpTimes.put(entry.getKey(), now);
+            final String url = entry.getValue();
+            mWarmUpExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    warmUpNow(url);
+                }
+            });
+        }
+    }
+
+    private void warmUpNow(String urlString) {
+        HttpURLConnection connection = null;
+        try {
+            InetAddress.getAllByName(new URL(urlString).getHost());
+            connection = open(urlString);
+            connection.setConnectTimeout(WARM_UP_TIMEOUT_MS);
+            connection.setReadTimeout(WARM_UP_TIMEOUT_MS);
+            // A HEAD request completes the TCP and TLS handshakes without pulling any audio,
+            // leaving an idle connection in the pool and the TLS session in the cache.
+            connection.setRequestMethod("HEAD");
+            int code = connection.getResponseCode();
+            if (code < 400 && connection.getContentLength() >= 0) {
+                // A proper HEAD response, the connection goes back to the pool
+                connection.getInputStream().close();
+                connection = null;
+            }
+            // Otherwise the server rejected HEAD, or answered like a live stream (eg Icecast)
+            // and may send audio anyway: drop the socket, keeping the DNS entry and TLS session
+        } catch (IOException e) {
+            // Best effort, the actual request will report the failure
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    private static String getOrigin(String urlString) {
+        try {
+            URL url = new URL(urlString);
+            if (!url.getProtocol().startsWith("http")) {
+                return null;
+            }
+            return url.getProtocol() + "://" + url.getHost() + ":" + url.getPort();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static Constructor<? extends InputStream> findBrotliDecoder() {
+        try {
+            return Class.forName(BROTLI_INPUT_STREAM)
+                    .asSubclass(InputStream.class)
+                    .getConstructor(InputStream.class);
+        } catch (ReflectiveOperationException | ClassCastException e) {
+            return null;
+        }
+    }
+
+    private static SSLSocketFactory createSslSocketFactory() {
+        try {
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(null, null, null);
+            context.getClientSessionContext().setSessionCacheSize(TLS_SESSION_CACHE_SIZE);
+            context.getClientSessionContext().setSessionTimeout(TLS_SESSION_TIMEOUT_S);
+            return context.getSocketFactory();
+        } catch (GeneralSecurityException e) {
+            // Fall back on the platform default factory
+            return null;
+        }
+    }
+}
@@ -11,27 +11,43 @@ import android.content.Context;
 import android.media.AudioManager;
 import android.media.MediaPlayer;
 import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.PowerManager;
 import android.os.SystemClock;
+import android.support.annotation.RequiresApi;
 import android.support.v4.media.MediaMetadataCompat;
 import android.support.v4.media.session.PlaybackStateCompat;
 import java.io.IOException;
 
+/**
+ * Drives the MediaPlayer. Must only be used from the thread of the looper it is created with;
+ * audio focus changes, reported on the main thread, are forwarded to that thread.
+ */
 public class PlaybackManager implements AudioManager.OnAudioFocusChangeListener, MediaPlayer.OnCompletionListener {
 
+    /** How far behind the live edge a freshly started player begins, to prepare quickly. */
+    private static final int LIVE_PREROLL_BYTES = 32 * 1024;
+
     private final Context mContext;
     private int mState;
     private boolean mPlayOnFocusGain;
     private volatile MediaMetadataCompat mCurrentMedia;
 
     private MediaPlayer mMediaPlayer;
+    private int mTimeShiftBufferSize;
+    private TimeShiftBuffer mTimeShift;
+    private TimeShiftDataSource mDataSource;
     private StationsProvider mStationsProvider;
 
     private final Callback mCallback;
     private final AudioManager mAudioManager;
+    private final Handler mHandler;
     public  String currentMediaUrl;
-    public PlaybackManager(Context context, Callback callback) {
+    public PlaybackManager(Context context, Looper looper, Callback callback) {
         this.mContext = context;
+        this.mHandler = new Handler(looper);
         this.mAudioManager = (AudioManager) context.getSystemService(Context.AUDIO_SERVICE);
         this.mCallback = callback;
         mStationsProvider = new StationsProvider();
@@ -56,6 +72,7 @@ public class PlaybackManager implements AudioManager.OnAudioFocusChangeListener,
     public void play(MediaMetadataCompat metadata) {
         String mediaId = metadata.getDescription().getMediaId();
         boolean mediaChanged = (mCurrentMedia == null || !getCurrentMediaId().equals(mediaId));
+        boolean needsSource = mediaChanged;
 
         if (mMediaPlayer == null) {
             mMediaPlayer = new MediaPlayer();
@@ -63,22 +80,21 @@ public class PlaybackManager implements AudioManager.OnAudioFocusChangeListener,
             mMediaPlayer.setWakeMode(
                     mContext.getApplicationContext(), PowerManager.PARTIAL_WAKE_LOCK);
             mMediaPlayer.setOnCompletionListener(this);
+            needsSource = true;
         } else {
             if (mediaChanged) {
-                mMediaPlayer.reset();
+                resetPlayer();
             }
         }
 
-        if (mediaChanged) {
+        if (needsSource) {
             mCurrentMedia = metadata;
-            try {
-                mMediaPlayer.setDataSource(
-                        mContext.getApplicationContext(),
-                        Uri.parse(currentMediaUrl));
-                mMediaPlayer.prepare();
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            }
+            prepareDataSource();
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M
+                && mDataSource != null && !mDataSource.canResume()) {
+            // Paused for longer than the time-shift buffer holds, carry on from live
+            resetPlayer();
+            prepareDataSource();
         }
 
         if (tryToGetAudioFocus()) {
@@ -102,11 +118,105 @@ public class PlaybackManager implements AudioManager.OnAudioFocusChangeListener,
 
     public void stop() {
         mState = PlaybackStateCompat.STATE_STOPPED;
-        updatePlaybackState();
         // Give up Audio focus
         mAudioManager.abandonAudioFocus(this);
-        // Relax all resources
+        // Relax all resources. Only a pause keeps the time-shift buffer downloading. Closing it
+        // first releases a read the player may be blocked in, which would hold up its release.
+        releaseTimeShiftBuffer();
         releaseMediaPlayer();
+        updatePlaybackState();
+    }
+
+    /** Stops playback and releases everything. */
+    public void release() {
+        stop();
+    }
+
+    /**
+     * Drop the time-shifted audio and play from the live edge of the buffered stream, without
+     * reconnecting. Does nothing when time-shift is not in use.
+     */
+    public void jumpToLive() {
+        if (mMediaPlayer == null || mDataSource == null) {
+            return;
+        }
+        boolean wasPlaying = mState == PlaybackStateCompat.STATE_PLAYING;
+        resetPlayer();
+        prepareDataSource();
+        if (wasPlaying) {
+            mMediaPlayer.start();
+        }
+    }
+
+    /**
+     * Enable the live time-shift buffer, holding up to the given number of stream bytes off-heap
+     * between the network and the player. Zero disables it. Requires API 23, and is not used for
+     * HLS playlists.
+     */
+    public void setTimeShiftBufferSize(int bytes) {
+        mTimeShiftBufferSize = bytes;
+    }
+
+    /** @return true if streams are downloaded by the time-shift buffer, not the player. */
+    public boolean isTimeShiftEnabled() {
+        return mTimeShiftBufferSize > 0 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
+    }
+
+    /** @return true if the time-shift buffer can hold the given stream. */
+    public static boolean canTimeShift(String url) {
+        return url != null && !url.contains(".m3u8");
+    }
+
+    private boolean useTimeShift() {
+        return isTimeShiftEnabled() && canTimeShift(currentMediaUrl);
+    }
+
+    /** Set the player data source for the current media url, and prepare the player. */
+    private void prepareDataSource() {
+        try {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M && useTimeShift()) {
+                setTimeShiftDataSource();
+            } else {
+                releaseTimeShiftBuffer();
+                mMediaPlayer.setDataSource(
+                        mContext.getApplicationContext(),
+                        Uri.parse(currentMediaUrl));
+            }
+            mMediaPlayer.prepare();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** Feed the player from the time-shift buffer of the current media url. */
+    @RequiresApi(api = Build.VERSION_CODES.M)
+    private void setTimeShiftDataSource() {
+        if (mTimeShift == null || mTimeShift.isClosed()
+                || !mTimeShift.getUrl().equals(currentMediaUrl)) {
+            releaseTimeShiftBuffer();
+            mTimeShift = new TimeShiftBuffer(currentMediaUrl, mTimeShiftBufferSize);
+            mTimeShift.start();
+        }
+        mDataSource = new TimeShiftDataSource(mTimeShift, Math.max(
+                mTimeShift.getOldestPosition(),
+                mTimeShift.getLivePosition() - LIVE_PREROLL_BYTES));
+        mMediaPlayer.setDataSource(mDataSource);
+    }
+
+    /** Reset the player, first releasing any read it is blocked in on the time-shift buffer. */
+    private void resetPlayer() {
+        if (mTimeShift != null) {
+            mTimeShift.cancelReads();
+        }
+        mMediaPlayer.reset();
+    }
+
+    private void releaseTimeShiftBuffer() {
+        mDataSource = null;
+        if (mTimeShift != null) {
+            mTimeShift.close();
+            mTimeShift = null;
+        }
     }
 
     /** Try to get the system audio focus. */
@@ -122,7 +232,16 @@ public class PlaybackManager implements AudioManager.OnAudioFocusChangeListener,
      * AudioManager.OnAudioFocusChangeListener}.
      */
     @Override
-    public void onAudioFocusChange(int focusChange) {
+    public void onAudioFocusChange(final int focusChange) {
+        if (Looper.myLooper() != mHandler.getLooper()) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    onAudioFocusChange(focusChange);
+                }
+            });
+            return;
+        }
         boolean gotFullFocus = false;
         boolean canDuck = false;
         if (focusChange == AudioManager.AUDIOFOCUS_GAIN) {
@@ -170,6 +289,7 @@ public class PlaybackManager implements AudioManager.OnAudioFocusChangeListener,
             mMediaPlayer.reset();
             mMediaPlayer.release();
             mMediaPlayer = null;
+            mDataSource = null;
         }
     }
 
@@ -187,12 +307,19 @@ public class PlaybackManager implements AudioManager.OnAudioFocusChangeListener,
         return actions;
     }
 
-    private void updatePlaybackState() {
+    /** Publish the playback state again, eg once the custom actions changed. */
+    public void updatePlaybackState() {
         if (mCallback == null) {
             return;
         }
         PlaybackStateCompat.Builder stateBuilder =
                 new PlaybackStateCompat.Builder().setActions(getAvailableActions());
+        if (mDataSource != null) {
+            stateBuilder.addCustomAction(new PlaybackStateCompat.CustomAction.Builder(
+                    CogecoStreamingService.ACTION_JUMP_TO_LIVE, "Jump to live",
+                    android.R.drawable.ic_media_ff).build());
+        }
+        mCallback.onAddCustomActions(stateBuilder);
 
         stateBuilder.setState(
                 mState, getCurrentStreamPosition(), 1.0f, SystemClock.elapsedRealtime());
@@ -201,6 +328,9 @@ public class PlaybackManager implements AudioManager.OnAudioFocusChangeListener,
 
     public interface Callback {
         void onPlaybackStatusChanged(PlaybackStateCompat state);
+
+        /** Add the custom actions of the current media, called on the playback thread. */
+        void onAddCustomActions(PlaybackStateCompat.Builder stateBuilder);
     }
 
     public void setMediaUrl(String url) {
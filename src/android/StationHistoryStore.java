@@ -0,0 +1,340 @@
+package com.bhvr.android.auto;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Small persistent store of favorites, last played station and per-station play counts.
+ * <p>
+ * The store is a memory-mapped file with a fixed layout, so opening it only maps the file and
+ * indexes a bounded number of slots; there is nothing to parse. Updates go straight to the page
+ * cache and survive a process crash. Each slot holds two copies of its record, and an update
+ * always overwrites the older copy with a higher sequence number and its checksum, so a write
+ * torn by a power loss leaves the previous copy to fall back on the next open.
+ * <pre>
+ * header  : magic(4) version(4) lastPlayedId(4) checksum(4)
+ * slot    : record record
+ * record  : stationId(4) flags(4) playCount(4) sequence(4) lastPlayedAt(8) checksum(4) unused(4)
+ * </pre>
+ */
+public class StationHistoryStore {
+
+    private static final String TAG = "StationHistoryStore";
+
+    private static final int MAGIC = 0x43484953; // "CHIS"
+    private static final int VERSION = 2;
+
+    private static final int HEADER_SIZE = 16;
+    private static final int HEADER_CHECKSUM = 12;
+    private static final int OFFSET_LAST_PLAYED = 8;
+
+    private static final int RECORD_SIZE = 32;
+    private static final int RECORD_CHECKSUM = 24;
+    private static final int OFFSET_STATION_ID = 0;
+    private static final int OFFSET_FLAGS = 4;
+    private static final int OFFSET_PLAY_COUNT = 8;
+    private static final int OFFSET_SEQUENCE = 12;
+    private static final int OFFSET_LAST_PLAYED_AT = 16;
+    private static final int COPIES = 2;
+    private static final int SLOT_SIZE = COPIES * RECORD_SIZE;
+
+    private static final int FLAG_IN_USE = 1;
+    private static final int FLAG_FAVORITE = 1 << 1;
+
+    static final int CAPACITY = 128;
+    private static final int FILE_SIZE = HEADER_SIZE + CAPACITY * SLOT_SIZE;
+
+    private static final int NO_STATION = -1;
+    private static final int NO_RECORD = -1;
+
+    private final ByteBuffer mBuffer;
+    private final Map<Integer, Integer> mSlotByStation = new HashMap<>();
+    /** Offset of the current copy of each slot's record, or NO_RECORD if the slot is free. */
+    private final int[] mRecordBySlot = new int[CAPACITY];
+    private final CRC32 mCrc = new CRC32();
+    private final byte[] mScratch = new byte[RECORD_SIZE];
+
+    private StationHistoryStore(ByteBuffer buffer) {
+        mBuffer = buffer;
+        Arrays.fill(mRecordBySlot, NO_RECORD);
+        if (mBuffer.getInt(0) != MAGIC || mBuffer.getInt(4) != VERSION) {
+            reset();
+        } else {
+            indexRecords();
+        }
+    }
+
+    /**
+     * Map the given file, creating it if needed. If the file can't be mapped the store still
+     * works, but only in memory.
+     */
+    public static StationHistoryStore open(File file) {
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(FILE_SIZE);
+                // The mapping stays valid once the channel is closed
+                return new StationHistoryStore(
+                        raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, FILE_SIZE));
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Can't map " + file + ", listening history won't be persisted", e);
+            return new StationHistoryStore(ByteBuffer.allocate(FILE_SIZE));
+        }
+    }
+
+    /** @return the id of the station played last, or null if none was recorded. */
+    public synchronized String getLastPlayedId() {
+        int id;
+        if (checksum(0, HEADER_CHECKSUM) == mBuffer.getInt(HEADER_CHECKSUM)) {
+            id = mBuffer.getInt(OFFSET_LAST_PLAYED);
+        } else {
+            // Torn header, the most recently played record tells the same
+            id = findMostRecentStation();
+        }
+        return id == NO_STATION ? null : String.valueOf(id);
+    }
+
+    public synchronized int getPlayCount(String mediaId) {
+        int offset = findRecord(mediaId);
+        return offset < 0 ? 0 : mBuffer.getInt(offset + OFFSET_PLAY_COUNT);
+    }
+
+    public synchronized boolean isFavorite(String mediaId) {
+        return isFavorite(findRecord(mediaId));
+    }
+
+    /** Record that the given station started playing, and make it the last played one. */
+    public synchronized void recordPlay(String mediaId) {
+        int id = parseId(mediaId);
+        if (id == NO_STATION) {
+            return;
+        }
+        int offset = findRecord(mediaId);
+        boolean known = offset != NO_RECORD;
+        writeRecord(obtainSlot(id), id, known ? mBuffer.getInt(offset + OFFSET_FLAGS) : 0,
+                known ? mBuffer.getInt(offset + OFFSET_PLAY_COUNT) + 1 : 1,
+                System.currentTimeMillis());
+        writeHeader(id);
+    }
+
+    public synchronized void setFavorite(String mediaId, boolean favorite) {
+        int id = parseId(mediaId);
+        if (id == NO_STATION) {
+            return;
+        }
+        int offset = findRecord(mediaId);
+        boolean known = offset != NO_RECORD;
+        int flags = known ? mBuffer.getInt(offset + OFFSET_FLAGS) : 0;
+        flags = favorite ? flags | FLAG_FAVORITE : flags & ~FLAG_FAVORITE;
+        writeRecord(obtainSlot(id), id, flags,
+                known ? mBuffer.getInt(offset + OFFSET_PLAY_COUNT) : 0,
+                known ? mBuffer.getLong(offset + OFFSET_LAST_PLAYED_AT) : 0);
+    }
+
+    /**
+     * Orders media ids with favorites first, then by decreasing play count and recency.
+     */
+    public Comparator<String> getStationComparator() {
+        return new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                synchronized (StationHistoryStore.this) {
+                    int offsetA = findRecord(a);
+                    int offsetB = findRecord(b);
+                    int result = Boolean.compare(isFavorite(offsetB), isFavorite(offsetA));
+                    if (result == 0) {
+                        result = compareField(offsetB, offsetA, OFFSET_PLAY_COUNT);
+                    }
+                    if (result == 0) {
+                        result = compareField(offsetB, offsetA, OFFSET_LAST_PLAYED_AT);
+                    }
+                    return result;
+                }
+            }
+        };
+    }
+
+    /** Flush pending writes to storage. */
+    public synchronized void close() {
+        if (mBuffer instanceof MappedByteBuffer) {
+            ((MappedByteBuffer) mBuffer).force();
+        }
+    }
+
+    private boolean isFavorite(int offset) {
+        return offset >= 0 && (mBuffer.getInt(offset + OFFSET_FLAGS) & FLAG_FAVORITE) != 0;
+    }
+
+    private int compareField(int offsetA, int offsetB, int field) {
+        long a = offsetA < 0 ? 0 : field == OFFSET_LAST_PLAYED_AT
+                ? mBuffer.getLong(offsetA + field) : mBuffer.getInt(offsetA + field);
+        long b = offsetB < 0 ? 0 : field == OFFSET_LAST_PLAYED_AT
+                ? mBuffer.getLong(offsetB + field) : mBuffer.getInt(offsetB + field);
+        return a < b ? -1 : (a == b ? 0 : 1);
+    }
+
+    private void reset() {
+        for (int i = 0; i < FILE_SIZE; i++) {
+            mBuffer.put(i, (byte) 0);
+        }
+        mBuffer.putInt(0, MAGIC);
+        mBuffer.putInt(4, VERSION);
+        writeHeader(NO_STATION);
+        mSlotByStation.clear();
+        Arrays.fill(mRecordBySlot, NO_RECORD);
+    }
+
+    private void indexRecords() {
+        for (int slot = 0; slot < CAPACITY; slot++) {
+            int offset = NO_RECORD;
+            for (int copy = 0; copy < COPIES; copy++) {
+                int candidate = recordOffset(slot, copy);
+                if (isValid(candidate) && (offset == NO_RECORD
+                        || mBuffer.getInt(candidate + OFFSET_SEQUENCE)
+                        - mBuffer.getInt(offset + OFFSET_SEQUENCE) > 0)) {
+                    offset = candidate;
+                }
+            }
+            mRecordBySlot[slot] = offset;
+            if (offset == NO_RECORD) {
+                continue;
+            }
+            int id = mBuffer.getInt(offset + OFFSET_STATION_ID);
+            Integer other = mSlotByStation.get(id);
+            // A torn eviction may bring back a station which got another slot since, keep the
+            // record played last
+            if (other == null || compareField(offset, mRecordBySlot[other],
+                    OFFSET_LAST_PLAYED_AT) > 0) {
+                mSlotByStation.put(id, slot);
+            }
+        }
+    }
+
+    /** @return true if the slot holds the record of a station, rather than nothing or a stale one. */
+    private boolean isOwned(int slot) {
+        int offset = mRecordBySlot[slot];
+        if (offset == NO_RECORD) {
+            return false;
+        }
+        Integer owner = mSlotByStation.get(mBuffer.getInt(offset + OFFSET_STATION_ID));
+        return owner != null && owner == slot;
+    }
+
+    /** A copy is valid if it was written in full, which its checksum tells. */
+    private boolean isValid(int offset) {
+        return (mBuffer.getInt(offset + OFFSET_FLAGS) & FLAG_IN_USE) != 0
+                && checksum(offset, RECORD_CHECKSUM) == mBuffer.getInt(offset + RECORD_CHECKSUM);
+    }
+
+    private int findRecord(String mediaId) {
+        Integer slot = mSlotByStation.get(parseId(mediaId));
+        return slot == null ? NO_RECORD : mRecordBySlot[slot];
+    }
+
+    private int findMostRecentStation() {
+        int latest = NO_RECORD;
+        for (Integer slot : mSlotByStation.values()) {
+            int offset = mRecordBySlot[slot];
+            if (mBuffer.getLong(offset + OFFSET_LAST_PLAYED_AT) > 0 && (latest == NO_RECORD
+                    || compareField(offset, latest, OFFSET_LAST_PLAYED_AT) > 0)) {
+                latest = offset;
+            }
+        }
+        return latest == NO_RECORD ? NO_STATION : mBuffer.getInt(latest + OFFSET_STATION_ID);
+    }
+
+    /**
+     * Return the slot of the given station, picking a free slot or the one of the least played
+     * non favorite station if it has none yet. Nothing is written until the caller updates the
+     * record, so an evicted station keeps its record until then.
+     */
+    private int obtainSlot(int id) {
+        Integer slot = mSlotByStation.get(id);
+        if (slot != null) {
+            return slot;
+        }
+        int victim = -1;
+        for (int i = 0; i < CAPACITY; i++) {
+            int offset = mRecordBySlot[i];
+            if (!isOwned(i)) {
+                victim = i;
+                break;
+            }
+            if (!isFavorite(offset) && (victim < 0
+                    || mBuffer.getInt(offset + OFFSET_PLAY_COUNT)
+                    < mBuffer.getInt(mRecordBySlot[victim] + OFFSET_PLAY_COUNT))) {
+                victim = i;
+            }
+        }
+        if (victim < 0) {
+            victim = 0;
+        }
+        return victim;
+    }
+
+    /**
+     * Write the record of the given slot over its older copy, then make it the current one. The
+     * copy being replaced stays valid on disk until its checksum gets overwritten.
+     */
+    private void writeRecord(int slot, int id, int flags, int playCount, long lastPlayedAt) {
+        int current = mRecordBySlot[slot];
+        int offset = recordOffset(slot, current == recordOffset(slot, 0) ? 1 : 0);
+        int sequence = current == NO_RECORD ? 0 : mBuffer.getInt(current + OFFSET_SEQUENCE) + 1;
+        mBuffer.putInt(offset + OFFSET_STATION_ID, id);
+        mBuffer.putInt(offset + OFFSET_FLAGS, flags | FLAG_IN_USE);
+        mBuffer.putInt(offset + OFFSET_PLAY_COUNT, playCount);
+        mBuffer.putInt(offset + OFFSET_SEQUENCE, sequence);
+        mBuffer.putLong(offset + OFFSET_LAST_PLAYED_AT, lastPlayedAt);
+        mBuffer.putInt(offset + RECORD_CHECKSUM, checksum(offset, RECORD_CHECKSUM));
+
+        if (isOwned(slot)) {
+            // Evicted, unless it is the same station
+            mSlotByStation.remove(mBuffer.getInt(current + OFFSET_STATION_ID));
+        }
+        mRecordBySlot[slot] = offset;
+        mSlotByStation.put(id, slot);
+    }
+
+    private void writeHeader(int lastPlayedId) {
+        mBuffer.putInt(OFFSET_LAST_PLAYED, lastPlayedId);
+        mBuffer.putInt(HEADER_CHECKSUM, checksum(0, HEADER_CHECKSUM));
+    }
+
+    private int checksum(int offset, int length) {
+        for (int i = 0; i < length; i++) {
+            mScratch[i] = mBuffer.get(offset + i);
+        }
+        mCrc.reset();
+        mCrc.update(mScratch, 0, length);
+        return (int) mCrc.getValue();
+    }
+
+    private static int recordOffset(int slot, int copy) {
+        return HEADER_SIZE + slot * SLOT_SIZE + copy * RECORD_SIZE;
+    }
+
+    private static int parseId(String mediaId) {
+        if (mediaId == null) {
+            return NO_STATION;
+        }
+        try {
+            return Integer.parseInt(mediaId);
+        } catch (NumberFormatException e) {
+            return NO_STATION;
+        }
+    }
+}
@@ -16,28 +16,42 @@
 
 package com.bhvr.android.auto;
 
+import android.content.Context;
 import android.media.MediaMetadata;
 import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.support.v4.media.MediaMetadataCompat;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.MalformedJsonException;
 
 
-import org.json.JSONArray;
 import org.json.JSONException;
-import org.json.JSONObject;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.net.URL;
-import java.net.URLConnection;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.net.HttpURLConnection;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.zip.CRC32;
 
 /**
  * Utility class to get a list of MusicTrack's based on a server-side JSON
@@ -48,7 +62,40 @@ public class StationsProvider {
     private static final String CATALOG_URL =
         "https://api.cogecolive.com/stations?with=streams,images";
 
+    /**
+     * Default projection of the catalog: only the fields, image variants and stream variants
+     * read by {@link #parseStation}. Parameters the API doesn't know about are ignored by it,
+     * and the parser is fine with a full response.
+     */
+    private static final String DEFAULT_FIELDS = "id,name,images,streams";
+    private static final String DEFAULT_IMAGE_VARIANTS = "logo";
+    private static final int DEFAULT_STREAM_LIMIT = 1;
+
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+    private static final String DEFAULT_CHARSET = "UTF-8";
+
+    /** Attempts per fetch, spaced by an exponential backoff with full jitter. */
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long BACKOFF_BASE_MS = 500;
+    private static final long BACKOFF_MAX_MS = 8000;
+    /** Failed fetches in a row after which the circuit opens and the API is left alone. */
+    private static final int CIRCUIT_FAILURE_THRESHOLD = 2;
+    private static final long CIRCUIT_MIN_COOLDOWN_MS = 30 * 1000;
+    private static final long CIRCUIT_MAX_COOLDOWN_MS = 10 * 60 * 1000;
+
+    private static final String CATALOG_CACHE_FILE = "catalog.json";
+    private static final String CATALOG_VERSION_SUFFIX = ".version";
+    private static final String HEADER_ETAG = "ETag";
+    private static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+
+    private static StationsProvider sInstance;
+
     private static final String CUSTOM_METADATA_TRACK_SOURCE = "__SOURCE__";
+    /**
+     * Prefix of the metadata keys holding the logo variants whose name is their width in pixels,
+     * eg "__ART_128__". The original logo stays under METADATA_KEY_ALBUM_ART_URI.
+     */
+    private static final String CUSTOM_METADATA_ART_PREFIX = "__ART_";
 
     private static final String JSON_MUSIC = "data";
     private static final String JSON_TITLE = "title";
@@ -63,14 +110,65 @@ public class StationsProvider {
         NON_INITIALIZED, INITIALIZING, INITIALIZED
     }
 
+    /** Why the latest catalog fetch failed. */
+    public enum Failure {
+        NONE, NETWORK, MALFORMED, CIRCUIT_OPEN
+    }
+
     private volatile State mCurrentState = State.NON_INITIALIZED;
+    /** True when the catalog served is the last good one, not a fresh fetch. */
+    private volatile boolean mStale;
+    private volatile int mCatalogGeneration;
+    private volatile String mCatalogVersion;
+    private volatile Runnable mCatalogChangedListener;
+    private volatile boolean mStreamWarmUp;
+    private volatile String mCatalogUrl =
+            buildCatalogUrl(DEFAULT_FIELDS, DEFAULT_IMAGE_VARIANTS, DEFAULT_STREAM_LIMIT);
+
+    // Circuit breaker, only updated by retrieveMedia
+    private int mConsecutiveFailures;
+    private long mCooldownMs = CIRCUIT_MIN_COOLDOWN_MS;
+    private volatile long mCircuitOpenUntil;
+    private final Random mRandom = new Random();
+
+    // Only accessed from the main thread
+    private final List<Callback> mPendingCallbacks = new ArrayList<>();
+    private boolean mFetchInProgress;
+
+    private final File mCacheFile;
 
     public interface Callback {
-        void onMusicCatalogReady(boolean success);
+        /**
+         * @param success true if a catalog is available, possibly the last good one
+         * @param failure why the latest fetch failed, {@link Failure#NONE} if it succeeded or
+         *                if the last good catalog was loaded on a cold start without fetching;
+         *                {@link #isStale()} tells the two apart
+         */
+        void onMusicCatalogReady(boolean success, Failure failure);
     }
 
     public StationsProvider() {
+        this(null);
+    }
+
+    /**
+     * @param cacheDir where to keep the last good catalog, served while the API is down.
+     *                 Null keeps it in memory only.
+     */
+    public StationsProvider(File cacheDir) {
         mMusicListById = new ConcurrentHashMap<>();
+        mCacheFile = cacheDir == null ? null : new File(cacheDir, CATALOG_CACHE_FILE);
+    }
+
+    /**
+     * The catalog shared by the browse service and the Cordova plugin, so a catalog handed
+     * over by the web layer spares the service its own download.
+     */
+    public static synchronized StationsProvider getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new StationsProvider(context.getApplicationContext().getCacheDir());
+        }
+        return sInstance;
     }
 
     /**
@@ -84,36 +182,154 @@ public class StationsProvider {
         return mStationLists;
    }
 
+    /**
+     * Restrict the catalog to the given fields, image variants ("kind.size", comma separated) and
+     * number of streams per station. Null or non-positive values request everything. The
+     * projection must keep the id, name, logo and first stream of each station, and applies
+     * from the next fetch.
+     */
+    public void setCatalogProjection(String fields, String imageVariants, int streamLimit) {
+        mCatalogUrl = buildCatalogUrl(fields, imageVariants, streamLimit);
+    }
+
+    private static String buildCatalogUrl(String fields, String imageVariants, int streamLimit) {
+        StringBuilder url = new StringBuilder(CATALOG_URL);
+        if (fields != null) {
+            url.append("&fields=").append(fields);
+        }
+        if (imageVariants != null) {
+            url.append("&images=").append(imageVariants);
+        }
+        if (streamLimit > 0) {
+            url.append("&streams_limit=").append(streamLimit);
+        }
+        return url.toString();
+    }
+
+    /**
+     * Incremented every time the station list is rebuilt, so callers caching derived data
+     * know when to drop it.
+     */
+    public int getCatalogGeneration() {
+        return mCatalogGeneration;
+    }
+
     public boolean isInitialized() {
         return mCurrentState == State.INITIALIZED;
     }
 
+    /**
+     * @return the version of the current catalog: the ETag of the API response it comes from,
+     * or a checksum of its text if the API sent none. Null if there is no catalog.
+     */
+    public String getCatalogVersion() {
+        return mCatalogVersion;
+    }
+
+    /**
+     * Set a listener run on the main thread when the catalog gets replaced by a seeded one.
+     */
+    public void setOnCatalogChangedListener(Runnable listener) {
+        mCatalogChangedListener = listener;
+    }
+
+    /**
+     * Replace the catalog by one the web layer already fetched, in the API's format. Waits for
+     * any fetch in progress, so must be called off the main thread.
+     *
+     * @param version the ETag of the API response the catalog comes from, the same version
+     *                scheme as the catalogs fetched here. Null if the API sent none, in which
+     *                case the checksum of the text is used, as for the catalogs fetched here.
+     * @return false if the catalog is malformed, in which case the current one is kept
+     */
+    public synchronized boolean seedCatalog(String json, String version) {
+        if (version == null) {
+            version = checksum(json);
+        }
+        if (mCurrentState == State.INITIALIZED && version.equals(mCatalogVersion)) {
+            // Same catalog, only fresher if ours is the last good one: no need to parse it
+            // again, nor to have the clients reload
+            mStale = false;
+            return true;
+        }
+        try {
+            loadCatalog(parseCatalog(new StringReader(json), getBasePath(CATALOG_URL)));
+        } catch (IOException | JSONException e) {
+            return false;
+        }
+        mStale = false;
+        mCatalogVersion = version;
+        saveLastGoodCatalog(json, version);
+
+        final Runnable listener = mCatalogChangedListener;
+        if (listener != null) {
+            new Handler(Looper.getMainLooper()).post(listener);
+        }
+        return true;
+    }
+
+    /** Same as {@link #seedCatalog(String, String)}, reading the catalog from a file. */
+    public boolean seedCatalog(File file, String version) throws IOException {
+        InputStream is = new FileInputStream(file);
+        try {
+            return seedCatalog(readFully(is, DEFAULT_CHARSET, (int) file.length()), version);
+        } finally {
+            is.close();
+        }
+    }
+
+    /** @return true if the catalog is the last good one and should be refreshed. */
+    public boolean isStale() {
+        return mStale;
+    }
+
+    private boolean isCircuitOpen() {
+        return SystemClock.elapsedRealtime() < mCircuitOpenUntil;
+    }
+
     /**
      * Get the list of music tracks from a server and caches the track information
      * for future reference, keying tracks by musicId and grouping by genre.
+     * <p>
+     * Must be called from the main thread. Calls made while a fetch is running share its
+     * outcome instead of starting a new one, and while the circuit is open the last good
+     * catalog is served without touching the network.
      */
     public void retrieveMediaAsync(final Callback callback) {
-        if (mCurrentState == State.INITIALIZED) {
+        if (mCurrentState == State.INITIALIZED && (!mStale || isCircuitOpen())) {
             // Nothing to do, execute callback immediately
-            callback.onMusicCatalogReady(true);
+            if (callback != null) {
+                callback.onMusicCatalogReady(true, mStale ? Failure.CIRCUIT_OPEN : Failure.NONE);
+            }
+            return;
+        }
+
+        if (callback != null) {
+            mPendingCallbacks.add(callback);
+        }
+        if (mFetchInProgress) {
             return;
         }
+        mFetchInProgress = true;
 
         // Asynchronously load the music catalog in a separate thread
-        new AsyncTask<Void, Void, State>() {
+        new AsyncTask<Void, Void, Failure>() {
             @Override
-            protected State doInBackground(Void... params) {
-                retrieveMedia();
-                return mCurrentState;
+            protected Failure doInBackground(Void... params) {
+                return retrieveMedia();
             }
 
             @Override
-            protected void onPostExecute(State current) {
-                if (callback != null) {
-                    callback.onMusicCatalogReady(current == State.INITIALIZED);
+            protected void onPostExecute(Failure failure) {
+                mFetchInProgress = false;
+                List<Callback> callbacks = new ArrayList<>(mPendingCallbacks);
+                mPendingCallbacks.clear();
+                boolean success = mCurrentState == State.INITIALIZED;
+                for (Callback pending : callbacks) {
+                    pending.onMusicCatalogReady(success, failure);
                 }
             }
-        }.execute();
+        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
     }
 
     private synchronized void buildListById() {
@@ -129,56 +345,368 @@ public class StationsProvider {
             list.add(m.metadata);
         }
         mStationLists = stationsList;
+        mCatalogGeneration++;
     }
 
 
-    private synchronized void retrieveMedia() {
-        try {
-            if (mCurrentState == State.NON_INITIALIZED) {
-                mCurrentState = State.INITIALIZING;
-
-                int slashPos = CATALOG_URL.lastIndexOf('/');
-                String path = CATALOG_URL.substring(0, slashPos + 1);
-                JSONObject jsonObj = fetchJSONFromUrl(CATALOG_URL);
-                if (jsonObj == null) {
-                    return;
+    private synchronized Failure retrieveMedia() {
+        if (mCurrentState != State.INITIALIZED && loadLastGoodCatalog()) {
+            // Cold start: answer at once from the disk copy, which is stale so callers refresh
+            // it in the background
+            return Failure.NONE;
+        }
+        if (isCircuitOpen()) {
+            loadLastGoodCatalog();
+            return Failure.CIRCUIT_OPEN;
+        }
+        if (mCurrentState == State.NON_INITIALIZED) {
+            mCurrentState = State.INITIALIZING;
+        }
+
+        String catalogUrl = mCatalogUrl;
+        String path = getBasePath(catalogUrl);
+        Failure failure = Failure.NETWORK;
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            if (attempt > 0 && !backOff(attempt)) {
+                break;
+            }
+            try {
+                NetworkClient client = NetworkClient.getInstance();
+                HttpURLConnection urlConnection = client.open(catalogUrl);
+                client.acceptCompressed(urlConnection);
+                String current = mCurrentState == State.INITIALIZED ? mCatalogVersion : null;
+                if (isEtag(current)) {
+                    urlConnection.setRequestProperty(HEADER_IF_NONE_MATCH, current);
+                    if (urlConnection.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                        // Our copy is still the current one
+                        urlConnection.getInputStream().close();
+                        mStale = false;
+                        closeCircuit();
+                        return Failure.NONE;
+                    }
                 }
-                JSONArray tracks = jsonObj.getJSONArray(JSON_MUSIC);
-                if (tracks != null) {
-                    for (int j = 0; j < tracks.length(); j++) {
-                        MediaMetadataCompat item = buildFromJSON(tracks.getJSONObject(j), path);
-                        String musicId = item.getString(MediaMetadata.METADATA_KEY_MEDIA_ID);
-                        mMusicListById.put(musicId, new MutableMediaMetadata(musicId, item));
+                // The raw response goes to disk as it is parsed, never held in memory whole
+                TeeInputStream body = new TeeInputStream(
+                        client.getDecodedInputStream(urlConnection),
+                        mCacheFile == null ? null : getTempFile(mCacheFile));
+                Map<String, MutableMediaMetadata> catalog;
+                try {
+                    catalog = fetchFromUrl(urlConnection, body, path);
+                } catch (IOException | JSONException e) {
+                    body.finishCopy(null);
+                    throw e;
+                }
+                String version = urlConnection.getHeaderField(HEADER_ETAG);
+                if (version == null) {
+                    version = body.getChecksum();
+                }
+                if (!version.equals(current)) {
+                    // Only swap and bump the generation when the stations changed
+                    loadCatalog(catalog);
+                    mCatalogVersion = version;
+                    if (body.finishCopy(mCacheFile)) {
+                        writeAtomically(getVersionFile(), version);
                     }
-                    buildListById();
+                } else {
+                    body.finishCopy(null);
+                }
+                mStale = false;
+                closeCircuit();
+                return Failure.NONE;
+            } catch (IOException e) {
+                failure = Failure.NETWORK;
+            } catch (JSONException e) {
+                // The API answered, but with something we can't use: retrying won't help
+                failure = Failure.MALFORMED;
+                break;
+            }
+        }
+
+        recordFailure();
+        loadLastGoodCatalog();
+        if (mCurrentState != State.INITIALIZED) {
+            // Something bad happened, so we reset state to NON_INITIALIZED to allow
+            // retries (eg if the network connection is temporary unavailable)
+            mCurrentState = State.NON_INITIALIZED;
+        }
+        return failure;
+    }
+
+    /** Sleep before the given attempt. Returns false if interrupted. */
+    private boolean backOff(int attempt) {
+        long ceiling = Math.min(BACKOFF_MAX_MS, BACKOFF_BASE_MS << attempt);
+        try {
+            Thread.sleep((long) (mRandom.nextDouble() * ceiling));
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
 
+    private void recordFailure() {
+        mConsecutiveFailures++;
+        if (mConsecutiveFailures >= CIRCUIT_FAILURE_THRESHOLD) {
+            mCircuitOpenUntil = SystemClock.elapsedRealtime() + mCooldownMs;
+            mCooldownMs = Math.min(mCooldownMs * 2, CIRCUIT_MAX_COOLDOWN_MS);
+        }
+    }
+
+    private void closeCircuit() {
+        mConsecutiveFailures = 0;
+        mCooldownMs = CIRCUIT_MIN_COOLDOWN_MS;
+        mCircuitOpenUntil = 0;
+    }
+
+    /**
+     * Parse a catalog in the API's format as it is read, into station metadata by id.
+     *
+     * @throws JSONException if the catalog is malformed or a station misses a required field
+     */
+    private static Map<String, MutableMediaMetadata> parseCatalog(Reader in, String basePath)
+            throws IOException, JSONException {
+        Map<String, MutableMediaMetadata> musicListById = new HashMap<>();
+        JsonReader reader = new JsonReader(in);
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (!JSON_MUSIC.equals(reader.nextName())) {
+                    reader.skipValue();
+                    continue;
                 }
-                mCurrentState = State.INITIALIZED;
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    MediaMetadataCompat item = parseStation(reader, basePath);
+                    String musicId = item.getString(MediaMetadata.METADATA_KEY_MEDIA_ID);
+                    musicListById.put(musicId, new MutableMediaMetadata(musicId, item));
+                }
+                reader.endArray();
             }
-        } catch (JSONException e) {
+            reader.endObject();
+        } catch (MalformedJsonException | IllegalStateException | NumberFormatException e) {
+            throw new JSONException("Malformed catalog: " + e.getMessage());
+        }
+        return musicListById;
+    }
+
+    /** Replace the catalog by the given stations. */
+    private void loadCatalog(Map<String, MutableMediaMetadata> musicListById) {
+        mMusicListById.clear();
+        mMusicListById.putAll(musicListById);
+        buildListById();
+        warmUpHosts();
+        mCurrentState = State.INITIALIZED;
+    }
+
+    /**
+     * Serve the last good catalog from the disk cache, if we don't have one in memory already.
+     *
+     * @return true if the disk copy got loaded
+     */
+    private boolean loadLastGoodCatalog() {
+        if (mCurrentState == State.INITIALIZED || mCacheFile == null || !mCacheFile.exists()) {
+            return false;
+        }
+        InputStream is = null;
+        try {
+            is = new FileInputStream(mCacheFile);
+            Map<String, MutableMediaMetadata> catalog = parseCatalog(new InputStreamReader(
+                    new BufferedInputStream(is), DEFAULT_CHARSET), getBasePath(CATALOG_URL));
+            mCatalogVersion = readVersion();
+            // Flag it before it shows as initialized, so it can't pass for a fresh one
+            mStale = true;
+            loadCatalog(catalog);
+            return true;
+        } catch (IOException | JSONException e) {
+            // No usable copy, the failure will be reported as is
+            return false;
         } finally {
-            if (mCurrentState != State.INITIALIZED) {
-                // Something bad happened, so we reset state to NON_INITIALIZED to allow
-                // retries (eg if the network connection is temporary unavailable)
-                mCurrentState = State.NON_INITIALIZED;
+            if (is != null) {
+                try {
+                    is.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    private void saveLastGoodCatalog(String json, String version) {
+        if (mCacheFile == null) {
+            return;
+        }
+        if (writeAtomically(mCacheFile, json)) {
+            writeAtomically(getVersionFile(), version);
+        }
+    }
+
+    /** Read the version saved along the cached catalog, falling back on its checksum. */
+    private String readVersion() throws IOException {
+        File versionFile = getVersionFile();
+        boolean saved = versionFile.exists();
+        InputStream is = new FileInputStream(saved ? versionFile : mCacheFile);
+        try {
+            if (saved) {
+                return readFully(is, DEFAULT_CHARSET, (int) versionFile.length());
+            }
+            CRC32 crc = new CRC32();
+            byte[] buffer = new byte[READ_BUFFER_SIZE];
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                crc.update(buffer, 0, read);
             }
+            return Long.toHexString(crc.getValue());
+        } finally {
+            is.close();
         }
     }
 
+    private File getVersionFile() {
+        return new File(mCacheFile.getPath() + CATALOG_VERSION_SUFFIX);
+    }
 
-    private MediaMetadataCompat buildFromJSON(JSONObject json, String basePath) throws JSONException {
+    private static File getTempFile(File file) {
+        return new File(file.getPath() + ".tmp");
+    }
+
+    private static boolean writeAtomically(File file, String content) {
+        // Write aside then rename, so a crash never leaves a truncated copy behind
+        File tmp = getTempFile(file);
+        OutputStream os = null;
+        try {
+            os = new FileOutputStream(tmp);
+            os.write(content.getBytes(DEFAULT_CHARSET));
+            os.close();
+            os = null;
+            if (tmp.renameTo(file)) {
+                return true;
+            }
+            tmp.delete();
+        } catch (IOException e) {
+            tmp.delete();
+        } finally {
+            if (os != null) {
+                try {
+                    os.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Return the artwork best matching the given size: the smallest sized logo variant at least
+     * that wide, else the original logo.
+     *
+     * @param sizePixels the size hinted by the browsing client, 0 if none
+     */
+    public static String getArtUri(MediaMetadataCompat metadata, int sizePixels) {
+        String uri = metadata.getString(MediaMetadata.METADATA_KEY_ALBUM_ART_URI);
+        if (sizePixels <= 0) {
+            return uri;
+        }
+        int bestWidth = Integer.MAX_VALUE;
+        for (String key : metadata.keySet()) {
+            if (!key.startsWith(CUSTOM_METADATA_ART_PREFIX)) {
+                continue;
+            }
+            int width = Integer.parseInt(key.substring(CUSTOM_METADATA_ART_PREFIX.length(),
+                    key.length() - 2));
+            if (width >= sizePixels && width < bestWidth) {
+                bestWidth = width;
+                uri = metadata.getString(key);
+            }
+        }
+        return uri;
+    }
 
-        String title = json.getString("name");
+    /**
+     * Pre-connect to the stream hosts referenced by the catalog once it loads, so picking a
+     * station doesn't wait on DNS and connection setup. Only worth it when the streams are
+     * opened through {@link NetworkClient}, ie by the time-shift buffer: the MediaPlayer has
+     * its own connections, and the artwork is loaded by the browsing clients.
+     * <p>
+     * A catalog loaded before this is turned on (eg seeded by the web layer) is warmed up now.
+     */
+    public void setStreamWarmUp(boolean enabled) {
+        mStreamWarmUp = enabled;
+        if (enabled && mCurrentState == State.INITIALIZED) {
+            warmUpHosts();
+        }
+    }
 
-        JSONObject images = json.getJSONObject("images");
-        JSONObject image = images.getJSONObject("logo");
-        JSONObject coloredImages = images.getJSONObject("logo");
+    private void warmUpHosts() {
+        if (!mStreamWarmUp) {
+            return;
+        }
+        List<String> urls = new ArrayList<>();
+        for (MutableMediaMetadata m : mMusicListById.values()) {
+            String url = m.metadata.getString(MediaMetadata.METADATA_KEY_MEDIA_URI);
+            if (PlaybackManager.canTimeShift(url)) {
+                urls.add(url);
+            }
+        }
+        NetworkClient.getInstance().warmUp(urls);
+    }
 
-        JSONArray streams = json.getJSONArray("streams");
-        JSONObject stream = streams.getJSONObject(0);
+    /** Read one station of the catalog, skipping the fields we don't use. */
+    private static MediaMetadataCompat parseStation(JsonReader reader, String basePath)
+            throws IOException, JSONException {
+        String id = null;
+        String title = null;
+        String source = null;
+        String iconUrl = null;
+        Map<String, String> artVariants = new HashMap<>();
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if ("id".equals(name)) {
+                id = String.valueOf(reader.nextInt());
+            } else if ("name".equals(name)) {
+                title = reader.nextString();
+            } else if ("images".equals(name)) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    if (!"logo".equals(reader.nextName())) {
+                        reader.skipValue();
+                        continue;
+                    }
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        String variant = reader.nextName();
+                        if (reader.peek() != JsonToken.STRING) {
+                            reader.skipValue();
+                        } else if ("ori".equals(variant)) {
+                            iconUrl = reader.nextString();
+                        } else {
+                            artVariants.put(variant, reader.nextString());
+                        }
+                    }
+                    reader.endObject();
+                }
+                reader.endObject();
+            } else if ("streams".equals(name)) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    if (source == null) {
+                        source = parseStreamUrl(reader);
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
 
-        String source = stream.getString("url");
-        String iconUrl = image.getString("ori");
+        if (id == null || title == null || source == null || iconUrl == null) {
+            throw new JSONException("Incomplete station " + id);
+        }
 
         if (!source.startsWith("http")) {
             source = basePath + source;
@@ -188,46 +716,208 @@ public class StationsProvider {
             iconUrl = basePath + iconUrl;
         }
 
-        String id = String.valueOf(json.getInt("id"));
-
-
-        return new MediaMetadataCompat.Builder()
+        MediaMetadataCompat.Builder builder = new MediaMetadataCompat.Builder()
                 .putString(MediaMetadata.METADATA_KEY_MEDIA_ID, id)
                 .putString(MediaMetadata.METADATA_KEY_MEDIA_URI, source)
                 .putString(MediaMetadata.METADATA_KEY_ALBUM_ART_URI, iconUrl)
-                .putString(MediaMetadata.METADATA_KEY_TITLE, title)
-                .build();
+                .putString(MediaMetadata.METADATA_KEY_TITLE, title);
+        for (Map.Entry<String, String> variant : artVariants.entrySet()) {
+            putArtVariant(builder, variant.getKey(), variant.getValue(), basePath);
+        }
+        return builder.build();
+    }
+
+    private static String parseStreamUrl(JsonReader reader) throws IOException {
+        String url = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if ("url".equals(reader.nextName()) && reader.peek() == JsonToken.STRING) {
+                url = reader.nextString();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return url;
+    }
+
+    /** Keep a logo variant named after its width, eg "128", for {@link #getArtUri}. */
+    private static void putArtVariant(MediaMetadataCompat.Builder builder, String variant,
+                                      String url, String basePath) {
+        if (url == null || url.isEmpty()) {
+            return;
+        }
+        try {
+            int width = Integer.parseInt(variant);
+            if (!url.startsWith("http")) {
+                url = basePath + url;
+            }
+            builder.putString(CUSTOM_METADATA_ART_PREFIX + width + "__", url);
+        } catch (NumberFormatException e) {
+            // Not a sized variant
+        }
     }
 
     /**
-     * Download a JSON file from a server, parse the content and return the JSON
-     * object.
-     *
-     * @return result JSONObject containing the parsed representation.
+     * Parse the catalog from the decoded response body as it streams in, reading it up to the
+     * end so the connection can be pooled and the body's copy is complete.
      */
-    private JSONObject fetchJSONFromUrl(String urlString) {
-        InputStream is = null;
+    private static Map<String, MutableMediaMetadata> fetchFromUrl(
+            HttpURLConnection urlConnection, InputStream body, String basePath)
+            throws IOException, JSONException {
+        Reader reader = new InputStreamReader(
+                new BufferedInputStream(body, READ_BUFFER_SIZE), getCharset(urlConnection));
+        Map<String, MutableMediaMetadata> catalog = parseCatalog(reader, basePath);
+        char[] buffer = new char[READ_BUFFER_SIZE];
+        while (reader.read(buffer) != -1) {
+            // Trailing whitespace
+        }
+        return catalog;
+    }
+
+    /** Checksums are bare hex, while an ETag is a quoted string, possibly weak (W/"..."). */
+    private static boolean isEtag(String version) {
+        return version != null && (version.startsWith("\"") || version.startsWith("W/"));
+    }
+
+    private static String getBasePath(String url) {
+        return url.substring(0, url.lastIndexOf('/') + 1);
+    }
+
+    private static String checksum(String json) {
+        CRC32 crc = new CRC32();
         try {
-            URL url = new URL(urlString);
-            URLConnection urlConnection = url.openConnection();
-            is = new BufferedInputStream(urlConnection.getInputStream());
-            BufferedReader reader = new BufferedReader(new InputStreamReader(
-                    urlConnection.getInputStream(), "iso-8859-1"));
-            StringBuilder sb = new StringBuilder();
-            String line;
-            while ((line = reader.readLine()) != null) {
-                sb.append(line);
-            }
-            return new JSONObject(sb.toString());
-        } catch (Exception e) {
-            return null;
-        } finally {
-            if (is != null) {
+            crc.update(json.getBytes(DEFAULT_CHARSET));
+        } catch (IOException e) {
+            // UTF-8 is always supported
+        }
+        return Long.toHexString(crc.getValue());
+    }
+
+    private static String readFully(InputStream is, String charset, int sizeHint)
+            throws IOException {
+        Reader reader = new InputStreamReader(new BufferedInputStream(is), charset);
+        StringBuilder sb = new StringBuilder(Math.max(sizeHint, 0));
+        char[] buffer = new char[READ_BUFFER_SIZE];
+        int read;
+        while ((read = reader.read(buffer)) != -1) {
+            sb.append(buffer, 0, read);
+        }
+        return sb.toString();
+    }
+
+    private static String getCharset(HttpURLConnection connection) {
+        String contentType = connection.getContentType();
+        if (contentType != null) {
+            for (String param : contentType.split(";")) {
+                param = param.trim();
+                if (param.regionMatches(true, 0, "charset=", 0, 8)) {
+                    return param.substring(8).replace("\"", "");
+                }
+            }
+        }
+        return DEFAULT_CHARSET;
+    }
+
+    /**
+     * Copies the bytes read through it to a file, and checksums them the same way as
+     * {@link #checksum}. The copy is best effort: failing to write it doesn't fail the reads.
+     */
+    private static final class TeeInputStream extends FilterInputStream {
+        private final File mCopyFile;
+        private final CRC32 mCrc = new CRC32();
+        private OutputStream mCopy;
+
+        /** @param copyFile where to copy the bytes, null for no copy */
+        TeeInputStream(InputStream in, File copyFile) {
+            super(in);
+            mCopyFile = copyFile;
+            if (copyFile != null) {
                 try {
-                    is.close();
+                    mCopy = new FileOutputStream(copyFile);
+                } catch (IOException e) {
+                    mCopy = null;
+                }
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                mCrc.update(b);
+                copy(new byte[] {(byte) b}, 0, 1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read = super.read(buffer, offset, count);
+            if (read > 0) {
+                mCrc.update(buffer, offset, read);
+                copy(buffer, offset, read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            // Skipped bytes wouldn't be copied
+            byte[] buffer = new byte[(int) Math.min(count, READ_BUFFER_SIZE)];
+            int read = read(buffer, 0, buffer.length);
+            return Math.max(read, 0);
+        }
+
+        String getChecksum() {
+            return Long.toHexString(mCrc.getValue());
+        }
+
+        /**
+         * Close the stream, and move the copy to the given file if it is complete.
+         *
+         * @param target where to keep the copy, null to discard it
+         * @return true if the copy was moved
+         */
+        boolean finishCopy(File target) {
+            try {
+                close();
+            } catch (IOException e) {
+                // ignore
+            }
+            boolean complete = mCopy != null;
+            if (mCopy != null) {
+                try {
+                    mCopy.close();
                 } catch (IOException e) {
+                    complete = false;
+                }
+                mCopy = null;
+            }
+            if (complete && target != null && mCopyFile.renameTo(target)) {
+                return true;
+            }
+            if (mCopyFile != null) {
+                mCopyFile.delete();
+            }
+            return false;
+        }
+
+        private void copy(byte[] buffer, int offset, int count) {
+            if (mCopy == null) {
+                return;
+            }
+            try {
+                mCopy.write(buffer, offset, count);
+            } catch (IOException e) {
+                // Disk full or the like, give up on the copy but not on the catalog
+                try {
+                    mCopy.close();
+                } catch (IOException ignored) {
                     // ignore
                 }
+                mCopy = null;
+                mCopyFile.delete();
             }
         }
     }
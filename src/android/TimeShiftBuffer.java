@@ -0,0 +1,221 @@
+package com.bhvr.android.auto;
+
+import android.os.SystemClock;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Bounded ring buffer holding the most recent bytes of a live stream, sitting between the
+ * network and the player. A background thread keeps downloading the stream into an off-heap
+ * buffer, overwriting the oldest bytes once it is full, so a paused player can resume from
+ * where it stopped (or jump back to live) without reconnecting.
+ * <p>
+ * Bytes are addressed by their absolute position in the stream since the buffer started.
+ * The buffer closes itself when nobody read from it for about as long as it holds audio, since
+ * by then a paused reader's position has been overwritten anyway.
+ */
+public class TimeShiftBuffer implements Runnable {
+
+    /** Idle timeout used until the stream rate is known, and upper bound of the timeout. */
+    static final long MAX_IDLE_TIMEOUT_MS = 10 * 60 * 1000;
+
+    private static final int CHUNK_SIZE = 8 * 1024;
+    private static final long READ_TIMEOUT_MS = 15000;
+    private static final long RECONNECT_DELAY_MS = 1000;
+
+    private final String mUrl;
+    private final ByteBuffer mRing;
+    private final int mCapacity;
+
+    // Guarded by this
+    private long mWritePosition;
+    private long mLastAccess;
+    private long mFirstWriteTime;
+    private InputStream mInput;
+    private boolean mClosed;
+    /** Bumped to release the reads waiting for data, see {@link #cancelReads()}. */
+    private int mReadGeneration;
+
+    public TimeShiftBuffer(String url, int capacity) {
+        mUrl = url;
+        mCapacity = capacity;
+        mRing = ByteBuffer.allocateDirect(capacity);
+        mLastAccess = SystemClock.elapsedRealtime();
+    }
+
+    public void start() {
+        Thread thread = new Thread(this, "TimeShiftBuffer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public String getUrl() {
+        return mUrl;
+    }
+
+    public synchronized boolean isClosed() {
+        return mClosed;
+    }
+
+    /** Stop downloading and release the connection. Pending and further reads return -1. */
+    public synchronized void close() {
+        mClosed = true;
+        closeInput();
+        notifyAll();
+    }
+
+    /**
+     * Make the reads waiting for data return -1 right away, keeping the buffer downloading. The
+     * player must not be reset while one of its reads is blocked here, as the reset waits for it.
+     */
+    public synchronized void cancelReads() {
+        mReadGeneration++;
+        notifyAll();
+    }
+
+    /** @return the position of the most recent byte received, plus one. */
+    public synchronized long getLivePosition() {
+        return mWritePosition;
+    }
+
+    /** @return the position of the oldest byte still held by the buffer. */
+    public synchronized long getOldestPosition() {
+        return Math.max(0, mWritePosition - mCapacity);
+    }
+
+    /** @return true if reading from the given position won't hit evicted data. */
+    public synchronized boolean isAvailable(long position) {
+        return !mClosed && position >= getOldestPosition();
+    }
+
+    /**
+     * Read bytes starting at the given absolute position, blocking until some are available.
+     *
+     * @return the number of bytes read, or -1 if the buffer is closed, the position was evicted,
+     * no data arrived in time or the read was cancelled.
+     */
+    public synchronized int read(long position, byte[] buffer, int offset, int size) {
+        mLastAccess = SystemClock.elapsedRealtime();
+        long deadline = mLastAccess + READ_TIMEOUT_MS;
+        int generation = mReadGeneration;
+        while (!mClosed && position >= mWritePosition) {
+            if (generation != mReadGeneration) {
+                return -1;
+            }
+            long remaining = deadline - SystemClock.elapsedRealtime();
+            if (remaining <= 0) {
+                return -1;
+            }
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return -1;
+            }
+        }
+        if (mClosed || position < getOldestPosition()) {
+            return -1;
+        }
+        int length = (int) Math.min(size, mWritePosition - position);
+        int index = (int) (position % mCapacity);
+        int first = Math.min(length, mCapacity - index);
+        mRing.position(index);
+        mRing.get(buffer, offset, first);
+        if (first < length) {
+            mRing.position(0);
+            mRing.get(buffer, offset + first, length - first);
+        }
+        return length;
+    }
+
+    @Override
+    public void run() {
+        byte[] chunk = new byte[CHUNK_SIZE];
+        while (!isClosed()) {
+            try {
+                InputStream input = NetworkClient.getInstance().open(mUrl).getInputStream();
+                synchronized (this) {
+                    if (mClosed) {
+                        input.close();
+                        return;
+                    }
+                    mInput = input;
+                }
+                int read;
+                while ((read = input.read(chunk)) != -1) {
+                    if (!write(chunk, read)) {
+                        return;
+                    }
+                }
+            } catch (IOException e) {
+                // Connection dropped, reconnect below unless we were closed meanwhile
+            }
+            synchronized (this) {
+                closeInput();
+                if (!mClosed && isIdle()) {
+                    // Don't keep reconnecting for a reader which is gone
+                    close();
+                }
+                if (!mClosed) {
+                    try {
+                        wait(RECONNECT_DELAY_MS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    /** Append bytes to the ring. Returns false once the buffer is closed or idle. */
+    private synchronized boolean write(byte[] chunk, int length) {
+        if (mClosed) {
+            return false;
+        }
+        if (isIdle()) {
+            close();
+            return false;
+        }
+        if (mWritePosition == 0) {
+            mFirstWriteTime = SystemClock.elapsedRealtime();
+        }
+        int index = (int) (mWritePosition % mCapacity);
+        int first = Math.min(length, mCapacity - index);
+        mRing.position(index);
+        mRing.put(chunk, 0, first);
+        if (first < length) {
+            mRing.position(0);
+            mRing.put(chunk, first, length - first);
+        }
+        mWritePosition += length;
+        notifyAll();
+        return true;
+    }
+
+    /** @return true if nobody read for longer than the ring holds audio. */
+    private boolean isIdle() {
+        return SystemClock.elapsedRealtime() - mLastAccess > getIdleTimeout();
+    }
+
+    /** @return how long the ring holds at the stream rate seen so far, bounded. */
+    private long getIdleTimeout() {
+        long elapsed = SystemClock.elapsedRealtime() - mFirstWriteTime;
+        if (mWritePosition == 0 || elapsed <= 0) {
+            return MAX_IDLE_TIMEOUT_MS;
+        }
+        return Math.min(MAX_IDLE_TIMEOUT_MS, mCapacity * elapsed / mWritePosition);
+    }
+
+    private void closeInput() {
+        if (mInput != null) {
+            try {
+                mInput.close();
+            } catch (IOException e) {
+                // ignore
+            }
+            mInput = null;
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.bhvr.android.auto;
+
+import android.media.MediaDataSource;
+import android.os.Build;
+import android.support.annotation.RequiresApi;
+
+/**
+ * Feeds a {@link android.media.MediaPlayer} from a {@link TimeShiftBuffer}, starting at a given
+ * position of the buffered stream. The buffer outlives the data source, so a new source can be
+ * opened on the same buffer (eg to jump back to live) without touching the network.
+ */
+@RequiresApi(api = Build.VERSION_CODES.M)
+public class TimeShiftDataSource extends MediaDataSource {
+
+    private final TimeShiftBuffer mBuffer;
+    private final long mBasePosition;
+    private volatile long mReadPosition;
+
+    public TimeShiftDataSource(TimeShiftBuffer buffer, long basePosition) {
+        mBuffer = buffer;
+        mBasePosition = basePosition;
+        mReadPosition = basePosition;
+    }
+
+    @Override
+    public int readAt(long position, byte[] buffer, int offset, int size) {
+        if (size == 0) {
+            return 0;
+        }
+        int read = mBuffer.read(mBasePosition + position, buffer, offset, size);
+        if (read > 0) {
+            mReadPosition = mBasePosition + position + read;
+        }
+        return read;
+    }
+
+    @Override
+    public long getSize() {
+        // Live stream, the size is unknown
+        return -1;
+    }
+
+    @Override
+    public void close() {
+        // The buffer is owned by the PlaybackManager, which may reuse it
+    }
+
+    /** @return true if the player can carry on from where it stopped reading. */
+    public boolean canResume() {
+        return mBuffer.isAvailable(mReadPosition);
+    }
+}
@@ -3,3 +3,45 @@ var exec = require('cordova/exec');
 exports.coolMethod = function (arg0, success, error) {
     exec(success, error, 'AndroidAuto', 'coolMethod', [arg0]);
 };
+
+/**
+ * Hand the station catalog fetched by the web layer over to the native side.
+ * catalog is the API response, as a JSON string or object. version is the ETag header of that
+ * response, as is, which is how the native side versions the catalogs it downloads itself: pass
+ * it so an unchanged catalog isn't parsed again nor reloaded by Android Auto. Pass null only if
+ * the API sent no ETag; the native side then uses a checksum of the JSON text, so the string
+ * must be the response body unchanged.
+ * success receives the native catalog version.
+ */
+exports.seedCatalog = function (catalog, version, success, error) {
+    var payload = typeof catalog === 'string' ? catalog : JSON.stringify(catalog);
+    exec(success, error, 'AndroidAuto', 'seedCatalog', [payload, version]);
+};
+
+/**
+ * Same as seedCatalog, reading the catalog from a file (path or file:// url). version is the
+ * ETag of the response the file holds.
+ */
+exports.seedCatalogFromFile = function (path, version, success, error) {
+    exec(success, error, 'AndroidAuto', 'seedCatalogFile', [path, version]);
+};
+
+/**
+ * success receives { version: string|null, stale: boolean } for the native catalog. version is
+ * the ETag of the API response it comes from (see seedCatalog), so the web layer can send it
+ * as If-None-Match, and skip seeding when it gets a 304.
+ */
+exports.getCatalogVersion = function (success, error) {
+    exec(success, error, 'AndroidAuto', 'getCatalogVersion', []);
+};
+
+/**
+ * Restrict the catalog downloaded by the native side: fields and imageVariants are comma
+ * separated lists ("id,name,images,streams" and "logo" by default), streamLimit the number of
+ * streams per station. null or 0 requests everything. The id, name, logo and first stream of
+ * each station must be kept. Applies from the next download.
+ */
+exports.setCatalogProjection = function (fields, imageVariants, streamLimit, success, error) {
+    exec(success, error, 'AndroidAuto', 'setCatalogProjection',
+        [fields, imageVariants, streamLimit || 0]);
+};